@@ -0,0 +1,195 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/** Writes snapshots of the cache to files or streams, in one of two formats:
+ *
+ * TEXT is the master file format of RFC 1035 (one "name. TTL IN TYPE data" line per record),
+ * so an export can be read by people and by standard DNS tools. Records of types unknown to
+ * RecordType are written in the generic format of RFC 3597 ("TYPE99 \# 2 ABCD"), and names
+ * cached as nonexistent are written as comments.
+ *
+ * BINARY is a compact format meant to be read back by programs. It starts with the four bytes
+ * "DNSC", a 16-bit version (2) and the 64-bit time of the snapshot in milliseconds since the
+ * epoch. It is followed by entries, each starting with a tag byte: 1 for a record (host name,
+ * 16-bit type code, 32-bit TTL and data in its text form), 2 for a nonexistent name (name and
+ * 32-bit TTL), and 0 to end the export. Strings are in UTF-8, preceded by their 32-bit length in
+ * bytes.
+ *
+ * Exports write a snapshot of the cache, which does not change once taken, so they may run on
+ * a background thread, for as long as the output takes, while lookups continue to use and
+ * update the cache.
+ */
+public class CacheExporter {
+
+    public enum Format {TEXT, BINARY}
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int BINARY_MAGIC = 0x444e5343; // "DNSC"
+    private static final int BINARY_VERSION = 2;
+    private static final int TAG_END = 0;
+    private static final int TAG_RECORD = 1;
+    private static final int TAG_NONEXISTENT = 2;
+
+    private static final ExecutorService exporter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cache-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /** Takes a snapshot of a cache and writes it to a file on a background thread. Exports run
+     * one at a time, in the order they are requested, and each takes its snapshot when it starts.
+     * The caller is not held up by either.
+     *
+     * @param cache  Cache to be exported.
+     * @param file   File the export is written to, replacing any existing file.
+     * @param format Format of the export.
+     * @return The number of records exported, available once the export completes, or an
+     * UncheckedIOException if the file could not be written.
+     */
+    public static CompletableFuture<Integer> exportInBackground(DNSCache cache, Path file, Format format) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return export(cache.snapshot(), file, format);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, exporter);
+    }
+
+    /** Waits for the exports already requested to complete, and stops the background thread.
+     * No export may be requested afterwards; this is meant to be called before exiting.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public static void shutdown() throws InterruptedException {
+        exporter.shutdown();
+        exporter.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /** Writes a snapshot to a file.
+     *
+     * @param snapshot Snapshot to be exported.
+     * @param file     File the export is written to, replacing any existing file.
+     * @param format   Format of the export.
+     * @return The number of records exported.
+     * @throws IOException if the file could not be written.
+     */
+    public static int export(CacheSnapshot snapshot, Path file, Format format) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            if (format == Format.TEXT) {
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+                int count = writeText(snapshot, writer);
+                writer.flush();
+                return count;
+            } else {
+                return writeBinary(snapshot, out);
+            }
+        }
+    }
+
+    /** Writes a snapshot in the TEXT format. The writer is buffered internally and flushed, but
+     * not closed.
+     *
+     * @param snapshot Snapshot to be exported.
+     * @param writer   Destination of the export.
+     * @return The number of records written, not counting nonexistent names.
+     * @throws IOException if the writer fails.
+     */
+    public static int writeText(CacheSnapshot snapshot, Writer writer) throws IOException {
+        BufferedWriter out = new BufferedWriter(writer, BUFFER_SIZE);
+        out.write("; cache snapshot of " + new Date(snapshot.getTime()) + "\n");
+        int count = 0;
+        for (ResourceRecord record : snapshot.getRecords()) {
+            out.write(absolute(record.getHostName()));
+            out.write(' ');
+            out.write(Long.toString(snapshot.getTTL(record)));
+            out.write(" IN ");
+            out.write(record.getNode().getTypeName());
+            out.write(' ');
+            out.write(textData(record));
+            out.write('\n');
+            count++;
+        }
+        for (String name : snapshot.getNonexistentNames().keySet())
+            out.write("; nonexistent " + absolute(name) + " " + snapshot.getNonexistentTTL(name) + "\n");
+        out.flush();
+        return count;
+    }
+
+    /** Writes a snapshot in the BINARY format. The stream is buffered internally and flushed, but
+     * not closed.
+     *
+     * @param snapshot Snapshot to be exported.
+     * @param stream   Destination of the export.
+     * @return The number of records written, not counting nonexistent names.
+     * @throws IOException if the stream fails.
+     */
+    public static int writeBinary(CacheSnapshot snapshot, OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, BUFFER_SIZE));
+        out.writeInt(BINARY_MAGIC);
+        out.writeShort(BINARY_VERSION);
+        out.writeLong(snapshot.getTime());
+        int count = 0;
+        for (ResourceRecord record : snapshot.getRecords()) {
+            out.writeByte(TAG_RECORD);
+            writeString(out, record.getHostName());
+            out.writeShort(record.getTypeCode());
+            out.writeInt((int) snapshot.getTTL(record));
+            writeString(out, record.getTextResult());
+            count++;
+        }
+        for (Map.Entry<String, Date> entry : snapshot.getNonexistentNames().entrySet()) {
+            out.writeByte(TAG_NONEXISTENT);
+            writeString(out, entry.getKey());
+            out.writeInt((int) snapshot.getNonexistentTTL(entry.getKey()));
+        }
+        out.writeByte(TAG_END);
+        out.flush();
+        return count;
+    }
+
+    //unlike writeUTF, which is limited to 65535 bytes, a string of any length can be written, e.g., a long TXT record
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    //the data of a record in master file format, where the domain names it contains are absolute
+    private static String textData(ResourceRecord record) {
+        String data = record.getTextResult();
+        String[] fields;
+        switch (record.getType()) {
+            case NS:
+            case CNAME:
+            case DNAME:
+            case PTR:
+                return absolute(data);
+            case MX:
+                fields = data.split(" ", 2);
+                return fields[0] + " " + absolute(fields[1]);
+            case SRV:
+                fields = data.split(" ", 4);
+                return fields[0] + " " + fields[1] + " " + fields[2] + " " + absolute(fields[3]);
+            case SOA:
+                fields = data.split(" ", 3);
+                return absolute(fields[0]) + " " + absolute(fields[1]) + " " + fields[2];
+            default:
+                return data;
+        }
+    }
+
+    private static String absolute(String name) {
+        return name + ".";
+    }
+}
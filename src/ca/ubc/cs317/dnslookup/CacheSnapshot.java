@@ -0,0 +1,61 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/** The contents of a DNSCache at a point in time, obtained with DNSCache.snapshot(). The
+ * snapshot holds references to the records that were in the cache at that time, not copies of
+ * them, and does not change when the cache does, so it can be exported or inspected at leisure,
+ * by any thread, without holding up lookups.
+ */
+public class CacheSnapshot {
+
+    private final long time;
+    private final List<ResourceRecord> records;
+    private final Map<String, Date> nonexistentNames;
+
+    CacheSnapshot(long time, List<ResourceRecord> records, Map<String, Date> nonexistentNames) {
+        this.time = time;
+        this.records = Collections.unmodifiableList(records);
+        this.nonexistentNames = Collections.unmodifiableMap(nonexistentNames);
+    }
+
+    /** Returns the time the snapshot was taken, in milliseconds since the epoch. */
+    public long getTime() {
+        return time;
+    }
+
+    /** Returns the records that were valid when the snapshot was taken, ordered by host name
+     * and record type.
+     */
+    public List<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    /** Returns the TTL a record of this snapshot had when the snapshot was taken.
+     *
+     * @param record A record of this snapshot.
+     * @return The TTL of the record, in seconds, as of the time of the snapshot.
+     */
+    public long getTTL(ResourceRecord record) {
+        return record.getTTL(time);
+    }
+
+    /** Returns the names that were cached as nonexistent when the snapshot was taken, with the
+     * time they stop being considered nonexistent, ordered by name.
+     */
+    public Map<String, Date> getNonexistentNames() {
+        return nonexistentNames;
+    }
+
+    /** Returns the TTL a nonexistent name of this snapshot had when the snapshot was taken.
+     *
+     * @param name A name in getNonexistentNames().
+     * @return The number of seconds, rounded up, the name was still to be considered nonexistent.
+     */
+    public long getNonexistentTTL(String name) {
+        return (nonexistentNames.get(name).getTime() - time + 999) / 1000;
+    }
+}
@@ -1,22 +1,70 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
- * the user.
+ * the user. The cache may be used by several lookups running in parallel.
+ *
+ * Alongside the map, the cached host names are indexed in a trie following the DNS hierarchy.
+ * The index is used to find the closest cached zone cut above a name, and to find or remove
+ * everything cached under a domain, without scanning the whole cache. Cached CNAME chains are
+ * indexed in the same way by every name they go through.
  */
 public class DNSCache {
 
     private static DNSCache instance = new DNSCache();
+    private static final int MIN_NONEXISTENT_SWEEP_INTERVAL = 1024;
 
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new ConcurrentSkipListMap<>();
+    private Map<DNSNode, CachedChain> cachedChains = new ConcurrentSkipListMap<>();
+    private DomainTrie<Date> nonexistentNames = new DomainTrie<>();
+    private final AtomicInteger nonexistentAddedSinceSweep = new AtomicInteger();
+    private final AtomicBoolean sweepingNonexistent = new AtomicBoolean();
+    private volatile int nonexistentLeftAfterSweep = 0;
+    private DomainTrie<Map<Integer, Map<ResourceRecord, ResourceRecord>>> nameIndex = new DomainTrie<>();
+    private DomainTrie<Map<DNSNode, CachedChain>> chainIndex = new DomainTrie<>();
+    private final InfrastructureTier infrastructure;
+    //stores hold the read lock and flushes the write lock, so a record or chain is never stored under a name being flushed
+    private final ReadWriteLock flushLock = new ReentrantReadWriteLock();
 
-    /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
-     * method returns the single DNS cache instance.
+    /** The results at the end of a CNAME chain, and the names the chain goes through. */
+    private static class CachedChain {
+        private final Set<ResourceRecord> results;
+        private final Set<String> owners;
+
+        private CachedChain(Set<ResourceRecord> results, Set<String> owners) {
+            this.results = results;
+            this.owners = owners;
+        }
+    }
+
+    private DNSCache() {
+        this.infrastructure = null;
+    }
+
+    /** Creates a cache shard, used by a ResolverShard instead of the default cache.
+     *
+     * @param infrastructure Tier the records at the top of the hierarchy cached in this shard
+     *                       are replicated with, or null.
+     */
+    DNSCache(InfrastructureTier infrastructure) {
+        this.infrastructure = infrastructure;
+        if (infrastructure != null) infrastructure.addReplica(this);
+    }
+
+    /** Singleton retrieval method. This method returns the default DNS cache instance, used by
+     * every lookup except those of a ShardedResolver, whose shards have caches of their own.
      *
      * @return Instance of a DNS cache.
      */
@@ -33,12 +81,7 @@ public class DNSCache {
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
-            return Collections.emptySet();
-
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        return validRecords(cachedResults.get(node));
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
@@ -49,45 +92,275 @@ public class DNSCache {
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
+        addResult(record, null);
+    }
+
+    /** Adds a resource record received from the name servers of a zone to the DNS cache, as
+     * addResult(record) does. If this cache is a shard, and the record is at the top of the
+     * hierarchy, it is also copied into the other shards (see InfrastructureTier).
+     *
+     * @param record Resource record, whose owner name has been checked to be within the zone.
+     * @param zone   Zone whose name servers supplied the record, or null if not known.
+     */
+    void addResult(ResourceRecord record, String zone) {
+        storeResult(record);
+        if (infrastructure != null && infrastructure.isInfrastructure(record, zone))
+            infrastructure.replicate(this, record);
+    }
+
+    //adds a record to this cache only, without replicating it
+    void storeResult(ResourceRecord record) {
 
         if (!record.isStillValid()) return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        flushLock.readLock().lock();
+        try {
+            Map<Integer, Map<ResourceRecord, ResourceRecord>> resultsByType =
+                    nameIndex.computeIfAbsent(record.getHostName(), ConcurrentHashMap::new);
+            Map<ResourceRecord, ResourceRecord> results =
+                    cachedResults.computeIfAbsent(record.getNode(), node -> new ConcurrentHashMap<>());
+            resultsByType.putIfAbsent(record.getTypeCode(), results);
+
+            results.merge(record, record, (oldRecord, newRecord) ->
+                    oldRecord.expiresBefore(newRecord) ? newRecord : oldRecord);
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    /** Returns the NS records of the closest zone cut at or above a host name, i.e., the NS
+     * records cached for the longest suffix of the host name that has any, and that satisfy an
+     * additional condition. This takes time proportional to the number of labels in the name.
+     *
+     * @param hostName Host name whose closest zone cut is searched.
+     * @param usable   Condition the set of NS records of a zone cut must satisfy to be returned,
+     *                 e.g., that the addresses of the name servers are known.
+     * @return The set of NS records of the closest matching zone cut, or an empty set if there is
+     * none in the cache.
+     */
+    public Set<ResourceRecord> getClosestNameservers(String hostName, Predicate<Set<ResourceRecord>> usable) {
+        Map<Integer, Map<ResourceRecord, ResourceRecord>> closest = nameIndex.findClosest(hostName, resultsByType -> {
+            Set<ResourceRecord> nameservers = validRecords(resultsByType.get(RecordType.NS.getCode()));
+            return !nameservers.isEmpty() && usable.test(nameservers);
+        });
+        return closest == null ? Collections.emptySet() : validRecords(closest.get(RecordType.NS.getCode()));
+    }
+
+    /** Removes everything cached for a domain and every name under it, including chains that
+     * go through any of these names, and names cached as nonexistent.
+     *
+     * @param domain Domain to be removed, without the trailing dot. The empty string removes
+     *               everything in the cache.
+     * @return The number of records removed.
+     */
+    public int flush(String domain) {
+        int count = 0;
+        flushLock.writeLock().lock();
+        try {
+            List<Map<Integer, Map<ResourceRecord, ResourceRecord>>> removed = new ArrayList<>();
+            nameIndex.forEachUnder(domain, (name, resultsByType) -> removed.add(resultsByType));
+            nameIndex.removeUnder(domain);
+            nonexistentNames.removeUnder(domain);
+            chainIndex.forEachUnder(domain, (name, chains) -> chains.forEach(this::removeChain));
+            chainIndex.removeUnder(domain);
+
+            for (Map<Integer, Map<ResourceRecord, ResourceRecord>> resultsByType : removed) {
+                for (Map<ResourceRecord, ResourceRecord> results : resultsByType.values()) {
+                    for (ResourceRecord record : results.keySet()) {
+                        cachedResults.remove(record.getNode());
+                        count++;
+                    }
+                }
+            }
+        } finally {
+            flushLock.writeLock().unlock();
         }
+        return count;
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns true if a host name is a domain or a name below it, without regard to case.
+     *
+     * @param hostName Host name, without the trailing dot.
+     * @param domain   Domain, without the trailing dot. The empty string is the root.
+     * @return true if the host name is at or below the domain.
+     */
+    static boolean isUnder(String hostName, String domain) {
+        return domain.isEmpty() || hostName.equalsIgnoreCase(domain) ||
+                (hostName.length() > domain.length() && hostName.charAt(hostName.length() - domain.length() - 1) == '.'
+                        && hostName.regionMatches(true, hostName.length() - domain.length(), domain, 0, domain.length()));
+    }
+
+    private static Set<ResourceRecord> validRecords(Map<ResourceRecord, ResourceRecord> results) {
+        if (results == null)
+            return Collections.emptySet();
+
+        results.keySet().removeIf(record -> !record.isStillValid());
+        return Collections.unmodifiableSet(results.keySet());
+    }
+
+    /** Returns the results at the end of a CNAME chain previously cached for a particular query
+     * with addChain. If no chain is cached for the query, or if the cached chain has expired,
+     * returns an empty set.
+     *
+     * @param node DNS query (host name and record type) to obtain cached results.
+     * @return A potentially empty set of the resources at the end of the chain for the query.
+     */
+    public Set<ResourceRecord> getCachedChainResults(DNSNode node) {
+        CachedChain chain = cachedChains.get(node);
+        if (chain == null)
+            return Collections.emptySet();
+
+        if (chain.results.isEmpty() || !chain.results.iterator().next().isStillValid()) {
+            removeChain(node, chain);
+            return Collections.emptySet();
+        }
+        return Collections.unmodifiableSet(chain.results);
+    }
+
+    /** Adds the full resolution of a query that went through one or more CNAME records to the
+     * cache. The results are kept only as long as every record in the chain and every result is
+     * still valid, i.e., for the minimum TTL of all of them.
+     *
+     * @param node    DNS query (host name and record type) that was resolved.
+     * @param chain   CNAME records followed from the queried host name, in order.
+     * @param results Records for the last host name of the chain, answering the query.
+     */
+    public void addChain(DNSNode node, List<ResourceRecord> chain, Set<ResourceRecord> results) {
+        List<ResourceRecord> all = new ArrayList<>(chain);
+        all.addAll(results);
+
+        Set<ResourceRecord> chainResults = new HashSet<>();
+        for (ResourceRecord record : results)
+            chainResults.add(record.expiringNoLaterThan(all));
+        if (chainResults.isEmpty() || !chainResults.iterator().next().isStillValid()) return;
+
+        //the names the chain goes through, so that flushing any of them removes the chain
+        Set<String> owners = new HashSet<>();
+        owners.add(node.getHostName());
+        for (ResourceRecord record : all)
+            owners.add(record.getHostName());
+        CachedChain cachedChain = new CachedChain(chainResults, owners);
+
+        flushLock.readLock().lock();
+        try {
+            for (String owner : owners)
+                chainIndex.computeIfAbsent(owner, ConcurrentHashMap::new).put(node, cachedChain);
+            CachedChain replaced = cachedChains.put(node, cachedChain);
+            if (replaced != null) unindexChain(node, replaced);
+        } finally {
+            flushLock.readLock().unlock();
+        }
+    }
+
+    //removes a chain from the cache, and from the index under every name it goes through
+    private void removeChain(DNSNode node, CachedChain chain) {
+        if (cachedChains.remove(node, chain)) unindexChain(node, chain);
+    }
+
+    private void unindexChain(DNSNode node, CachedChain chain) {
+        for (String owner : chain.owners) {
+            Map<DNSNode, CachedChain> chains = chainIndex.get(owner);
+            if (chains != null) chains.remove(node, chain);
+        }
+    }
+
+    /** Records that a host name does not exist (i.e., a server returned an NXDOMAIN response for
+     * it). Following RFC 8020, this also means that no name below it exists, so every name below
+     * it is considered nonexistent for the same duration.
+     *
+     * Names that are never looked up again (e.g., the random names of a random-subdomain attack)
+     * are removed once expired by a sweep, run after as many names have been added as the last
+     * sweep left, so the sweeps take constant time per name added on average.
+     *
+     * @param hostName Host name that does not exist.
+     * @param ttl      Number of seconds this information may be cached for.
+     */
+    public void addNonexistentName(String hostName, long ttl) {
+        if (ttl <= 0) return;
+
+        Date expirationTime = new Date(System.currentTimeMillis() + ttl * 1000);
+        Date oldExpirationTime = nonexistentNames.get(hostName);
+        if (oldExpirationTime == null || oldExpirationTime.before(expirationTime))
+            nonexistentNames.put(hostName, expirationTime);
+
+        if (nonexistentAddedSinceSweep.incrementAndGet() >= Math.max(MIN_NONEXISTENT_SWEEP_INTERVAL, nonexistentLeftAfterSweep)
+                && sweepingNonexistent.compareAndSet(false, true)) {
+            try {
+                nonexistentAddedSinceSweep.set(0);
+                Date now = new Date();
+                nonexistentLeftAfterSweep = nonexistentNames.removeIf(time -> !time.after(now));
+            } finally {
+                sweepingNonexistent.set(false);
+            }
+        }
+    }
+
+    /** Returns true if a host name, or any name above it, is cached as nonexistent. The check
+     * takes time proportional to the number of labels in the host name.
+     *
+     * @param hostName Host name to be checked.
+     * @return true if the host name is known not to exist, and false otherwise.
+     */
+    public boolean isNonexistent(String hostName) {
+        Date now = new Date();
+        return nonexistentNames.anyAncestor(hostName, expirationTime -> expirationTime.after(now));
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped; the
+     * cache itself is not modified, so lookups may continue while the action is performed.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        long now = System.currentTimeMillis();
         for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+            Set<ResourceRecord> records = new HashSet<>();
+            for (ResourceRecord record : entry.getValue().keySet())
+                if (record.isValidAt(now)) records.add(record);
+            if (!records.isEmpty())
+                consumer.accept(entry.getKey(), Collections.unmodifiableSet(records));
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped; the
+     * cache itself is not modified.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
+        long now = System.currentTimeMillis();
         for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+            for (ResourceRecord record : entry.getValue().keySet())
+                if (record.isValidAt(now)) consumer.accept(entry.getKey(), record);
+        }
+    }
+
+    /** Takes a snapshot of the records and nonexistent names currently in the cache, as of the
+     * time the snapshot is taken: records that expire before then are left out, and the TTLs in
+     * the snapshot are all relative to that time. Only references to the records are copied, with
+     * stores and flushes paused, so the snapshot is consistent but not a copy of every record.
+     *
+     * @return A snapshot of the cache, ordered by host name and record type.
+     */
+    public CacheSnapshot snapshot() {
+        List<ResourceRecord> records = new ArrayList<>();
+        Map<String, Date> nonexistent = new TreeMap<>();
+        long time;
+        flushLock.writeLock().lock();
+        try {
+            time = System.currentTimeMillis();
+            for (Map<ResourceRecord, ResourceRecord> results : cachedResults.values())
+                for (ResourceRecord record : results.keySet())
+                    if (record.isValidAt(time)) records.add(record);
+            nonexistentNames.forEachUnder("", (name, expirationTime) -> {
+                if (expirationTime.getTime() > time) nonexistent.put(name, expirationTime);
+            });
+        } finally {
+            flushLock.writeLock().unlock();
         }
+        return new CacheSnapshot(time, records, nonexistent);
     }
 
 }
\ No newline at end of file
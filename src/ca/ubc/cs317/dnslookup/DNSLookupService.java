@@ -1,18 +1,36 @@
 package ca.ubc.cs317.dnslookup;
 
+import java.io.BufferedWriter;
 import java.io.Console;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
 
 public class DNSLookupService {
 
     private static boolean p1Flag = false; // isolating part 1
     private static final int MAX_INDIRECTION_LEVEL = 10;
-    private static InetAddress rootServer;
+    private static final int MAX_NAMESERVER_NESTING = 4;
+    private static final int REVERSE_LOOKUP_PARALLELISM = 16;
+    private static volatile InetAddress rootServer;
+    private static volatile ForwarderPool forwarders = null;
     private static DNSCache cache = DNSCache.getInstance();
+    private static final ExecutorService dualStackExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "dual-stack-lookup");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
      * Main function, called when program is first invoked.
@@ -108,13 +126,17 @@ public class DNSLookupService {
                     commandArgs[0].equalsIgnoreCase("l")) {
                 // LOOKUP: Find and print all results associated to a name.
                 RecordType type;
+                if (commandArgs.length == 3 && commandArgs[2].equalsIgnoreCase("A+AAAA")) {
+                    findAndPrintDualStackResults(commandArgs[1]);
+                    continue;
+                }
                 if (commandArgs.length == 2)
                     type = RecordType.A;
                 else if (commandArgs.length == 3)
                     try {
                         type = RecordType.valueOf(commandArgs[2].toUpperCase());
                     } catch (IllegalArgumentException ex) {
-                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, MX, CNAME");
+                        System.err.println("Invalid query type. Must be one of:\n\tA, AAAA, NS, CNAME, DNAME, SOA, MX, TXT, PTR, SRV, A+AAAA");
                         continue;
                     }
                 else {
@@ -122,25 +144,117 @@ public class DNSLookupService {
                     continue;
                 }
                 findAndPrintResults(commandArgs[1], type);
+            } else if (commandArgs[0].equalsIgnoreCase("reverse")) {
+                // REVERSE: Find and print the PTR records of IP addresses, or of every address in a file.
+                if (commandArgs.length == 3 && commandArgs[1].equals("-f")) {
+                    reverseLookupFile(commandArgs[2]);
+                } else if (commandArgs.length >= 2) {
+                    List<InetAddress> addresses = new ArrayList<>();
+                    for (int i = 1; i < commandArgs.length; i++) {
+                        InetAddress address = parseAddress(commandArgs[i]);
+                        if (address != null) addresses.add(address);
+                    }
+                    reverseLookup(addresses);
+                } else {
+                    System.err.println("Invalid call. Format:\n\treverse IP [IP...]\n\treverse -f file");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("forward")) {
+                // FORWARD: Forward queries to a pool of recursive resolvers instead of iterating from the root
+                if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                    setForwarders(null);
+                    System.out.println("Forwarding is now: OFF");
+                } else if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("status")) {
+                    ForwarderPool pool = forwarders;
+                    if (pool == null) System.out.println("Forwarding is OFF");
+                    else pool.describe().forEach(System.out::println);
+                } else if (commandArgs.length >= 2) {
+                    List<InetAddress> addresses = new ArrayList<>();
+                    for (int i = 1; i < commandArgs.length; i++) {
+                        InetAddress address = parseAddress(commandArgs[i]);
+                        if (address != null) addresses.add(address);
+                    }
+                    if (addresses.size() == commandArgs.length - 1) {
+                        setForwarders(new ForwarderPool(addresses));
+                        System.out.println("Forwarding is now: ON (" + addresses.size() + " resolvers)");
+                    }
+                } else {
+                    System.err.println("Invalid call. Format:\n\tforward IP [IP...]|off|status");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove everything cached for a domain and the names under it
+                if (commandArgs.length == 2) {
+                    String domain = commandArgs[1].equals(".") ? "" : commandArgs[1].replaceAll("\\.$", "");
+                    int count = cache.flush(domain);
+                    System.out.println("Flushed " + count + " records under " + commandArgs[1]);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tflush domain");
+                }
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
                 // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                dumpCache();
+            } else if (commandArgs[0].equalsIgnoreCase("export")) {
+                // EXPORT: Write all results still cached to a file, in the background
+                if (commandArgs.length == 2 || commandArgs.length == 3) {
+                    CacheExporter.Format format;
+                    try {
+                        format = commandArgs.length == 2 ? CacheExporter.Format.TEXT
+                                : CacheExporter.Format.valueOf(commandArgs[2].toUpperCase());
+                    } catch (IllegalArgumentException ex) {
+                        System.err.println("Invalid format. Must be one of:\n\ttext, binary");
+                        continue;
+                    }
+                    exportCache(Paths.get(commandArgs[1]), format);
+                } else {
+                    System.err.println("Invalid call. Format:\n\texport file [text|binary]");
+                }
             }
             else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
+                System.err.println("\treverse IP [IP...] | -f file");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
+                System.err.println("\tforward IP [IP...]|off|status");
+                System.err.println("\tflush domain");
                 System.err.println("\tdump");
+                System.err.println("\texport file [text|binary]");
                 System.err.println("\tquit");
             }
 
         } while (true);
 
+        setForwarders(null);
+        try {
+            CacheExporter.shutdown();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted while waiting for exports to complete.");
+        }
         DNSQueryHandler.closeSocket();
         System.out.println("Goodbye!");
     }
 
+    /**
+     * Sets the root server lookups start at when nothing useful is cached, for every resolver
+     * in the process.
+     *
+     * @param server Address of the root server.
+     */
+    public static void setRootServer(InetAddress server) {
+        rootServer = server;
+    }
+
+    /**
+     * Switches between forwarding mode and iterative mode.
+     *
+     * @param pool Pool of upstream resolvers to forward queries to, or null to resolve queries
+     *             iteratively from the root server.
+     */
+    private static void setForwarders(ForwarderPool pool) {
+        ForwarderPool previous = forwarders;
+        forwarders = pool;
+        if (previous != null) previous.close();
+    }
+
     /**
      * Finds all results for a host name and type and prints them on the standard output.
      *
@@ -149,139 +263,558 @@ public class DNSLookupService {
      */
     private static void findAndPrintResults(String hostName, RecordType type) {
         DNSNode node = new DNSNode(hostName, type);
-        printResults(node, getResults(node, 0));
+        LookupResult result = lookup(node, new LookupContext(DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS));
+        result.getErrors().forEach(System.err::println);
+        printResults(node, result.getRecords());
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host name in parallel and prints them on the standard
+     * output, A records first.
+     *
+     * @param hostName Fully qualified domain name of the host being searched.
+     */
+    private static void findAndPrintDualStackResults(String hostName) {
+        for (LookupResult result : lookupDualStack(hostName, new LookupContext(DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS))) {
+            result.getErrors().forEach(System.err::println);
+            printResults(result.getQuestion(), result.getRecords());
+        }
+    }
+
+    /**
+     * Prints every record still cached on the standard output, from a snapshot of the cache, so
+     * lookups running in the background are not held up while the output is written.
+     */
+    private static void dumpCache() {
+        CacheSnapshot snapshot = cache.snapshot();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        for (ResourceRecord record : snapshot.getRecords())
+            out.printf("%-30s %-5s %-8d %s\n", record.getHostName(), record.getNode().getTypeName(),
+                    snapshot.getTTL(record), record.getTextResult());
+        out.flush();
+    }
+
+    /**
+     * Writes every record still cached to a file, on a background thread, and prints a message
+     * once the export is complete.
+     *
+     * @param file   File to write the records to.
+     * @param format Format of the file.
+     */
+    private static void exportCache(Path file, CacheExporter.Format format) {
+        System.out.println("Exporting cache to " + file + " in the background");
+        CacheExporter.exportInBackground(cache, file, format).whenComplete((count, failure) -> {
+            if (failure != null) System.err.println("Export to " + file + " failed: " + failure.getCause().getMessage());
+            else System.out.println("Exported " + count + " records to " + file);
+        });
+    }
+
+    /**
+     * Finds the PTR records of a set of IP addresses in parallel, and prints them on the standard
+     * output as they are found.
+     *
+     * @param addresses IP addresses to be resolved.
+     */
+    private static void reverseLookup(Iterable<InetAddress> addresses) {
+        try {
+            ReverseLookup.resolveAll(addresses, REVERSE_LOOKUP_PARALLELISM, (address, result) -> {
+                result.getErrors().forEach(System.err::println);
+                printResults(new DNSNode(address.getHostAddress(), RecordType.PTR), result.getRecords());
+            });
+        } catch (InterruptedException e) {
+            System.err.println("Reverse lookup interrupted.");
+        } catch (RuntimeException e) {
+            System.err.println("Reverse lookup failed (" + e + ").");
+        }
+    }
+
+    /**
+     * Finds the PTR records of every IP address listed in a file, one address per line. The file
+     * is read as the lookups proceed, so it may list any number of addresses.
+     *
+     * @param fileName Name of the file listing the addresses.
+     */
+    private static void reverseLookupFile(String fileName) {
+        try (Stream<String> lines = Files.lines(Paths.get(fileName))) {
+            Iterator<InetAddress> addresses = lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .map(DNSLookupService::parseAddress)
+                    .filter(Objects::nonNull)
+                    .iterator();
+            reverseLookup(() -> addresses);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Could not read addresses (" + e.getMessage() + ").");
+        }
+    }
+
+    /**
+     * Parses an IPv4 or IPv6 address literal. Host names are not accepted.
+     *
+     * @param text Address in textual form.
+     * @return The address, or null (after printing an error) if the text is not an address.
+     */
+    private static InetAddress parseAddress(String text) {
+        if (text.indexOf(':') < 0 && !text.matches("[0-9.]+")) {
+            System.err.println("Invalid IP address: " + text);
+            return null;
+        }
+        try {
+            return InetAddress.getByName(text);
+        } catch (UnknownHostException e) {
+            System.err.println("Invalid IP address: " + text);
+            return null;
+        }
     }
 
     /**
-     * Finds all the results for a specific node.
+     * Finds all the results for a specific node, and describes how they were found: the response
+     * code and authority of the answer, the queries sent, how long the lookup took, and any
+     * problems encountered. Nothing is printed, unless verbose tracing is on.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
+     * @param node    Host and record type to be used for search.
+     * @param context The lookup this search is part of. Queries already recorded in the context
+     *                are included in the result, and its creation time is taken as the time
+     *                the lookup was requested.
+     * @return The result of the lookup.
+     */
+    static LookupResult lookup(DNSNode node, LookupContext context) {
+        long startNanos = System.nanoTime();
+        Set<ResourceRecord> records = getResults(node, context);
+        List<LookupResult.ServerQuery> queries = context.getQueries();
+
+        //the answer is the last response about a name in the chain starting at the node, for the node's type
+        Set<String> chain = chainNames(node);
+        LookupResult.ServerQuery answer = null;
+        for (LookupResult.ServerQuery query : queries) {
+            if (query.getQuestion().getType() == node.getType()
+                    && chain.contains(query.getQuestion().getHostName().toLowerCase())) answer = query;
+        }
+        int rcode = LookupResult.NOERROR;
+        if (records.isEmpty()) {
+            boolean nonexistent = false;
+            for (String name : chain) nonexistent |= cache().isNonexistent(name);
+            String last = null;
+            for (String name : chain) last = name;
+            if (nonexistent) rcode = LookupResult.NXDOMAIN;
+            //a chain that does not end (a loop, or too many aliases) cannot be answered
+            else if (node.getType() != RecordType.CNAME && node.getType() != RecordType.DNAME && getCachedAlias(last) != null)
+                rcode = LookupResult.SERVFAIL;
+            else if (answer == null || answer.getRcode() < 0) rcode = LookupResult.SERVFAIL;
+            //a referral that was never followed to the end is not an answer
+            else if (answer.getRcode() == LookupResult.NOERROR && answer.getZone() != null && !answer.isAuthoritative())
+                rcode = LookupResult.SERVFAIL;
+            else rcode = answer.getRcode();
+        }
+        boolean authoritative = answer != null && answer.isAuthoritative() && answer.getRcode() == rcode;
+        long now = System.nanoTime();
+        return new LookupResult(node, records, rcode, authoritative, queries, context.getErrors(),
+                startNanos - context.getCreatedNanos(), now - context.getCreatedNanos());
+    }
+
+    //the names in the chain of aliases starting at the node's host name, as currently cached, in lower case
+    private static Set<String> chainNames(DNSNode node) {
+        Set<String> names = new LinkedHashSet<>();
+        String current = node.getHostName();
+        boolean followAliases = node.getType() != RecordType.CNAME && node.getType() != RecordType.DNAME;
+        while (names.add(current.toLowerCase()) && followAliases && names.size() <= MAX_INDIRECTION_LEVEL + 1) {
+            ResourceRecord alias = getCachedAlias(current);
+            if (alias == null) break;
+            current = alias.getTextResult();
+        }
+        return names;
+    }
+
+    /**
+     * Finds all the results for a specific node. CNAME records (and CNAME records synthesized from
+     * a DNAME record cached for an ancestor of the name) are followed, using records already in
+     * the cache, such as those returned in the same response as the CNAME, before querying the
+     * closest known name servers for a target. Once the end of the chain is reached, the chain is added to the
+     * cache so that later lookups for the same node are answered from the cache.
+     *
+     * @param node    Host and record type to be used for search.
+     * @param context The lookup this search is part of. All queries made for the lookup,
+     *                including those for CNAME targets and name servers, share its deadline.
      * @return A set of resource records corresponding to the specific query requested.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
+    static Set<ResourceRecord> getResults(DNSNode node, LookupContext context) {
 
         if (p1Flag) { // For isolating part 1 testing only
-            retrieveResultsFromServer(node, rootServer);
+            retrieveResultsFromServer(node, Collections.emptySet(), context);
             return Collections.emptySet();
-        } else if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        } else {
-            // TODO (PART 1/2): Implement this
-            //first check if we already have the answer
-            if (cache.getCachedResults(node).size() > 0) {
-                return cache.getCachedResults(node);
-            }
+        }
 
-            retrieveResultsFromServer(node, rootServer);
-
-            //create nodes of each type to help with searching in the cache
-            DNSNode ANode = new DNSNode(node.getHostName(), RecordType.A);
-            DNSNode AAAANode = new DNSNode(node.getHostName(), RecordType.AAAA);
-            DNSNode CnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
-            //first check if we have cnames not resolved
-            Set<ResourceRecord> results = new HashSet<>(cache.getCachedResults(CnameNode));
-            for (ResourceRecord r : results) {
-                // if we got a cname result
-                if (r.getType() == RecordType.CNAME &&
-                        !(resourceRecordsContainsType(results, RecordType.A) ||
-                                resourceRecordsContainsType(results,RecordType.AAAA))) {
-                    return getResults(new DNSNode(r.getTextResult(), node.getType()), indirectionLevel + 1);
+        //first check if we already have the answer, either directly or at the end of a cached chain
+        Set<ResourceRecord> results = cache().getCachedResults(node);
+        if (results.isEmpty()) results = cache().getCachedChainResults(node);
+        if (!results.isEmpty()) return results;
+
+        boolean followAliases = node.getType() != RecordType.CNAME && node.getType() != RecordType.DNAME;
+        List<ResourceRecord> chain = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        String current = node.getHostName();
+        while (visited.add(current.toLowerCase())) {
+            if (chain.size() > MAX_INDIRECTION_LEVEL) {
+                context.addError("Maximum number of indirection levels reached.");
+                return Collections.emptySet();
+            }
+            if (cache().isNonexistent(current)) return Collections.emptySet();
+            DNSNode target = new DNSNode(current, node.getType());
+            ResourceRecord alias = followAliases ? getCachedAlias(current) : null;
+            if (cache().getCachedResults(target).isEmpty() && alias == null) {
+                if (context.isExpired()) {
+                    context.addError("Lookup deadline reached.");
+                    return Collections.emptySet();
                 }
+                retrieveResultsFromServer(target, closestDelegation(current), context);
+                alias = followAliases ? getCachedAlias(current) : null;
+            }
+
+            results = cache().getCachedResults(target);
+            if (!results.isEmpty()) {
+                if (chain.isEmpty()) return results;
+                cache().addChain(node, chain, results);
+                Set<ResourceRecord> chainResults = cache().getCachedChainResults(node);
+                return chainResults.isEmpty() ? results : chainResults;
+            }
+            //no answer for this name: either it is an alias, or the domain is bad
+            if (alias == null) return Collections.emptySet();
+            chain.add(alias);
+            current = alias.getTextResult();
+        }
+        context.addError("CNAME loop detected at " + current);
+        return Collections.emptySet();
+    }
+
+    /**
+     * Finds the IPv4 and IPv6 addresses of a host name, resolving A and AAAA records at the same
+     * time. The A lookup walks down the DNS hierarchy, and the AAAA lookup starts from the last
+     * delegation the A lookup uses, which is then cached, so the hierarchy is only walked once.
+     * That delegation is known once its name servers respond with anything but a referral; if the
+     * A lookup reaches the zone named after the host (or its parent, if the name may be a zone of
+     * its own) before that, the AAAA lookup starts from there, so that both queries go to the
+     * same name servers in parallel. If the delegation is already cached, both lookups start
+     * right away.
+     *
+     * @param hostName Host name whose addresses are searched.
+     * @param context  Context of the AAAA lookup. The A lookup has a context of its own, with the
+     *                 same deadline.
+     * @return The results of the A and AAAA lookups, in this order.
+     */
+    static List<LookupResult> lookupDualStack(String hostName, LookupContext context) {
+        DNSNode aNode = new DNSNode(hostName, RecordType.A);
+        DNSNode aaaaNode = new DNSNode(hostName, RecordType.AAAA);
+        int dot = hostName.indexOf('.');
+        String parent = dot < 0 ? "" : hostName.substring(dot + 1);
+        Predicate<String> isNameZone = zone -> zone.equalsIgnoreCase(hostName) || zone.equalsIgnoreCase(parent);
+
+        CountDownLatch zoneReached = new CountDownLatch(1);
+        if (isNameZone.test(zoneOf(closestDelegation(hostName))) || !cache().getCachedResults(aNode).isEmpty())
+            zoneReached.countDown();
+        LookupContext aContext = context.withZoneListener(new LookupContext.ZoneListener() {
+            @Override
+            public void zoneReached(String zone) {
+                if (isNameZone.test(zone)) zoneReached.countDown();
+            }
+
+            @Override
+            public void zoneAnswered(String zone) {
+                zoneReached.countDown();
+            }
+        });
+        CompletableFuture<LookupResult> aResult =
+                CompletableFuture.supplyAsync(ResolverShard.bindToCurrent(() -> lookup(aNode, aContext)),
+                        dualStackExecutor);
+        aResult.whenComplete((result, failure) -> zoneReached.countDown());
+
+        LookupResult aaaaResult = null;
+        try {
+            zoneReached.await(context.remainingMillis(), TimeUnit.MILLISECONDS);
+            aaaaResult = lookup(aaaaNode, context);
+            return Arrays.asList(aResult.get(context.remainingMillis(), TimeUnit.MILLISECONDS), aaaaResult);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            //reported below as an incomplete A lookup
+        }
+        return Arrays.asList(aResult.isDone() && !aResult.isCompletedExceptionally() ? aResult.join()
+                        : incompleteLookup(aNode, aContext),
+                aaaaResult != null ? aaaaResult : incompleteLookup(aaaaNode, context));
+    }
+
+    //the result of a lookup abandoned before it completed, with what it recorded so far
+    static LookupResult incompleteLookup(DNSNode node, LookupContext context) {
+        context.addError("Lookup of " + node + " did not complete.");
+        return new LookupResult(node, Collections.emptySet(), LookupResult.SERVFAIL, false, context.getQueries(),
+                context.getErrors(), 0, System.nanoTime() - context.getCreatedNanos());
+    }
+
+    /**
+     * Returns the cached CNAME record for a host name. If there is none, but a DNAME record is
+     * cached for one of its ancestors, the equivalent CNAME record is synthesized from it.
+     *
+     * @param hostName Host name whose alias is searched.
+     * @return A CNAME record for the host name, or null if no alias is cached for it.
+     */
+    private static ResourceRecord getCachedAlias(String hostName) {
+        for (ResourceRecord r : cache().getCachedResults(new DNSNode(hostName, RecordType.CNAME)))
+            return r;
+        for (int dot = hostName.indexOf('.'); dot >= 0; dot = hostName.indexOf('.', dot + 1)) {
+            String owner = hostName.substring(dot + 1);
+            for (ResourceRecord r : cache().getCachedResults(new DNSNode(owner, RecordType.DNAME))) {
+                String target = hostName.substring(0, dot + 1) + r.getTextResult();
+                return new ResourceRecord(hostName, RecordType.CNAME, r.getTTL(), target);
             }
-            //now we for sure have either A/AAAA results or our domain is bad
-            Set<ResourceRecord> returnResults = new HashSet<>();
-            if (node.getType() == RecordType.A) {returnResults.addAll(cache.getCachedResults(ANode));}
-            if (node.getType() == RecordType.AAAA) {returnResults.addAll(cache.getCachedResults(AAAANode));}
-            return returnResults;
         }
+        return null;
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
+     * Retrieves DNS results from the name servers of a zone. Queries are sent in iterative mode,
      * and the query is repeated with a new server if the provided one is non-authoritative.
      * Results are stored in the cache.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param node       Host name and record type to be used for the query.
+     * @param delegation NS records of the zone whose servers are queried first, with known
+     *                   addresses, or an empty set to start at the root server. The query is
+     *                   retransmitted to the next server if a server does not respond in time.
+     * @param context    The lookup the query is part of.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
+    private static void retrieveResultsFromServer(DNSNode node, Set<ResourceRecord> delegation, LookupContext context) {
         byte[] message = new byte[512]; // query is no longer than 512 bytes
 
+        ForwarderPool forwarders = DNSLookupService.forwarders;
+        if (forwarders != null) {
+            forwardQuery(node, forwarders, context);
+            return;
+        }
+
         try {
-            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, server, node);
+            List<InetAddress> servers = delegation.isEmpty() ?
+                    Collections.singletonList(rootServer) : knownNameserverAddresses(delegation);
+            context.zoneReached(zoneOf(delegation));
+            DNSServerResponse serverResponse = DNSQueryHandler.buildAndSendQuery(message, servers,
+                    zoneOf(delegation), node, context, false);
 
             Set<ResourceRecord> nameservers = DNSQueryHandler.decodeAndCacheResponse(serverResponse.getTransactionID(),
-                    serverResponse.getResponse(),
-                    cache);
-            if (nameservers == null) nameservers = Collections.emptySet();
-
+                    serverResponse.getResponse(), zoneOf(delegation),
+                    cache());
             if (p1Flag) return; // For testing part 1 only
+            boolean authoritative = isAuthoritative(serverResponse);
+            reportIfLastResponse(node, nameservers, authoritative, zoneOf(delegation), context);
+            if (nameservers == null) {
+                recordUnusableResponse(node, serverResponse, context);
+                return;
+            }
 
-            queryNextLevel(node, nameservers);
+            queryNextLevel(node, nameservers, authoritative, zoneOf(delegation), context);
 
-        } catch (IOException | NullPointerException ignored){}
+        } catch (IOException e) {
+            context.addError("query for " + node + " failed: " + e.getMessage());
+        } catch (NullPointerException e) {
+            context.addError("query for " + node + " failed: " + e);
+        }
+    }
+
+    /**
+     * Retrieves DNS results from the pool of upstream recursive resolvers, when in forwarding
+     * mode. The query is sent with the RD flag set, so the upstream resolver returns the final
+     * answer, which is stored in the cache.
+     *
+     * @param node       Host name and record type to be used for the query.
+     * @param forwarders Pool of upstream resolvers the query is forwarded to.
+     * @param context    The lookup the query is part of.
+     */
+    private static void forwardQuery(DNSNode node, ForwarderPool forwarders, LookupContext context) {
+        byte[] message = new byte[512];
+        try {
+            DNSServerResponse response = forwarders.query(message, node, context);
+            if (DNSQueryHandler.decodeAndCacheResponse(response.getTransactionID(), response.getResponse(), cache()) == null)
+                recordUnusableResponse(node, response, context);
+        } catch (IOException e) {
+            context.addError("forwarding query failed: " + e.getMessage());
+        }
     }
 
     /**
      * Query the next level DNS Server, if necessary
      *
-     * @param node        Host name and record type of the query.
-     * @param records List of name servers returned from the previous level to query the next level.
+     * @param node          Host name and record type of the query.
+     * @param records       List of name servers returned from the previous level to query the next level.
+     * @param authoritative true if the records came in an authoritative answer, which ends the
+     *                      walk even if it has no records of the queried type (NODATA).
+     * @param queriedZone   Zone whose name servers returned the records.
+     * @param context       The lookup the query is part of.
      */
-    private static void queryNextLevel(DNSNode node,Set<ResourceRecord> records) {
-        boolean done = false;
-        if (resourceRecordSetContains(records, RecordType.A,node) || resourceRecordSetContains(records, RecordType.AAAA,node)
-                || resourceRecordSetContains(records, RecordType.CNAME,node)) {
-            //if previous level returned a or aaaa or cname records, no need to query anymore.
-            done = true; //for debugging
-        } else if (resourceRecordsContainsType(records,RecordType.NS)) {
-            // if we get name servers, we query the first one, if the first one doesn't respond we query the next one until there is no more.
-            //if we exhaust all the NSs, print an error and give up.
-
-            //create a set of just NS records
-            Set<ResourceRecord> nsRecords = new HashSet<>();
-            for (ResourceRecord r : records) {
-                if (r.getType() == RecordType.NS) {nsRecords.add(r);}
+    private static void queryNextLevel(DNSNode node, Set<ResourceRecord> records, boolean authoritative,
+                                       String queriedZone, LookupContext context) {
+        if (authoritative || isAnswer(node, records)) {
+            //if previous level returned a or aaaa or cname records, or records of the queried type, no need to query anymore.
+            return;
+        }
+        if (!resourceRecordsContainsType(records,RecordType.NS)) {
+            context.addError("query failed because no A/AAAA/CNAME found after querying all layers");
+            return;
+        }
+        //following a referral that gets no closer to the name would only lead to the same referral again
+        if (!isCloserReferral(node, zoneOf(records), queriedZone)) {
+            context.addError("lame delegation: the name servers of '" + queriedZone + "' referred " + node
+                    + " to '" + zoneOf(records) + "'");
+            return;
+        }
+        // if we get name servers, the query is sent to all of them in turn until one responds.
+        // if we exhaust all the NSs or the lookup deadline, print an error and give up.
+        List<InetAddress> servers = nameserverAddresses(records, context);
+        if (servers.isEmpty()) {
+            context.addError("query failed because no name server address could be found");
+            return;
+        }
+        context.zoneReached(zoneOf(records));
+        try {
+            byte[] packetBuffer = new byte[512];
+            DNSServerResponse response = DNSQueryHandler.buildAndSendQuery(packetBuffer, servers,
+                    zoneOf(records), node, context, false);
+            //update next servers list
+            Set<ResourceRecord> nextLevel = DNSQueryHandler.decodeAndCacheResponse(response.getTransactionID(),
+                    response.getResponse(), zoneOf(records), cache());
+            boolean nextAuthoritative = isAuthoritative(response);
+            reportIfLastResponse(node, nextLevel, nextAuthoritative, zoneOf(records), context);
+            if (nextLevel != null) {
+                queryNextLevel(node, nextLevel, nextAuthoritative, zoneOf(records), context);
+            } else {
+                recordUnusableResponse(node, response, context);
             }
-            //pick the first server in that set to query next, if this server don't work, change to another one
-            ResourceRecord nextServer = nsRecords.iterator().next();
-            boolean continueQueryingThisLevel = true;
-            int tries = 0;
-            //create a set of next servers that will be returned after we query this layer, if it is null, it means are query did not return proper response
-            Set<ResourceRecord> nextLevel = null;
-            while (nsRecords.iterator().hasNext() && continueQueryingThisLevel && tries < 5) {
-                tries++;
-                try {
-                    //create packet and send
-                    byte[] packeBuffer = new byte[256];
-                    String nextServerName = nextServer.getTextResult();
-                    DNSServerResponse response = DNSQueryHandler.buildAndSendQuery(packeBuffer,
-                            InetAddress.getByName(nextServerName),node);
-                    //update next servers list
-                    nextLevel = DNSQueryHandler.decodeAndCacheResponse(response.getTransactionID(),
-                            response.getResponse(), cache);
-                    if (nextLevel != null) {
-                        //next servers found
-                        continueQueryingThisLevel = false;
-                        queryNextLevel(node, nextLevel);
-                    } else {
-                        System.err.println("query failed because a level did not return valid next servers");
-                    }
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                    System.err.println("querying next level failed because IO exception");
+        } catch (IOException e) {
+            context.addError("querying next level failed because IO exception: " + e.getMessage());
+        }
+    }
+
+    //the walk down the hierarchy stops at a response that cannot be decoded, that is authoritative or answers the
+    //query, or that refers it to no other zone
+    private static void reportIfLastResponse(DNSNode node, Set<ResourceRecord> response, boolean authoritative,
+                                             String zone, LookupContext context) {
+        if (response == null || authoritative || isAnswer(node, response)
+                || !resourceRecordsContainsType(response, RecordType.NS)
+                || !isCloserReferral(node, zoneOf(response), zone))
+            context.zoneAnswered(zone);
+    }
+
+    //a referral gets closer to the name only if it is to a zone strictly below the zone queried, and at or above the name
+    private static boolean isCloserReferral(DNSNode node, String referredZone, String queriedZone) {
+        return !referredZone.equalsIgnoreCase(queriedZone) && DNSCache.isUnder(referredZone, queriedZone)
+                && DNSCache.isUnder(node.getHostName(), referredZone);
+    }
+
+    //the AA flag is set in answers, including NODATA answers, but never in referrals
+    private static boolean isAuthoritative(DNSServerResponse response) {
+        return (response.getResponse().get(2) & 0x04) != 0;
+    }
+
+    private static boolean isAnswer(DNSNode node, Set<ResourceRecord> records) {
+        return resourceRecordSetContains(records, RecordType.A, node) || resourceRecordSetContains(records, RecordType.AAAA, node)
+                || resourceRecordSetContains(records, RecordType.CNAME, node) || resourceRecordSetContains(records, node.getType(), node);
+    }
+
+    //records why a response could not be decoded, unless it was an NXDOMAIN answer, which is cached
+    private static void recordUnusableResponse(DNSNode node, DNSServerResponse response, LookupContext context) {
+        int rcode = response.getResponse().get(3) & 0xf;
+        if (rcode == LookupResult.NXDOMAIN) return;
+        context.addError(rcode == LookupResult.NOERROR ? "malformed response to " + node
+                : "server answered " + LookupResult.rcodeName(rcode) + " to " + node);
+    }
+
+    /**
+     * Finds the addresses of the name servers listed in a set of records. Addresses given as glue
+     * in the same set of records, or already cached, are used first. If none of the name servers
+     * has a known address, they are resolved in turn until one of them resolves. A name server
+     * whose address is already being resolved by the same lookup is skipped, and no more than
+     * MAX_NAMESERVER_NESTING such resolutions are nested.
+     *
+     * @param records Records returned by a server, including NS records and possibly their glue.
+     * @param context The lookup the name servers are needed for.
+     * @return A potentially empty list of name server addresses, IPv4 addresses first.
+     */
+    private static List<InetAddress> nameserverAddresses(Set<ResourceRecord> records, LookupContext context) {
+        List<InetAddress> addresses = knownNameserverAddresses(records);
+        for (Iterator<ResourceRecord> it = records.iterator(); it.hasNext() && addresses.isEmpty() && !context.isExpired(); ) {
+            ResourceRecord ns = it.next();
+            if (ns.getType() != RecordType.NS) continue;
+            String nsName = ns.getTextResult();
+            if (context.nameserverLookupDepth() >= MAX_NAMESERVER_NESTING) {
+                context.addError("too many nested name server lookups at " + nsName);
+                break;
+            }
+            if (!context.beginNameserverLookup(nsName)) {
+                context.addError("name server " + nsName + " depends on itself, skipped");
+                continue;
+            }
+            try {
+                for (ResourceRecord r : getResults(new DNSNode(nsName, RecordType.A), context)) {
+                    if (r.getInetResult() != null) addresses.add(r.getInetResult());
+                }
+            } finally {
+                context.endNameserverLookup(nsName);
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Finds the addresses of the name servers listed in a set of records that are already known,
+     * either as glue in the same set of records or in the cache. No query is sent.
+     *
+     * @param records Set of records including NS records and possibly their glue.
+     * @return A potentially empty list of name server addresses, IPv4 addresses first.
+     */
+    private static List<InetAddress> knownNameserverAddresses(Set<ResourceRecord> records) {
+        List<String> nsNames = new ArrayList<>();
+        for (ResourceRecord r : records) {
+            if (r.getType() == RecordType.NS) nsNames.add(r.getTextResult());
+        }
+        List<InetAddress> addresses = new ArrayList<>();
+        for (RecordType type : new RecordType[]{RecordType.A, RecordType.AAAA}) {
+            for (String nsName : nsNames) {
+                for (ResourceRecord r : records) {
+                    if (r.getType() == type && r.getHostName().equalsIgnoreCase(nsName)
+                            && !addresses.contains(r.getInetResult())) addresses.add(r.getInetResult());
+                }
+                for (ResourceRecord r : cache().getCachedResults(new DNSNode(nsName, type))) {
+                    if (!addresses.contains(r.getInetResult())) addresses.add(r.getInetResult());
                 }
-                nextServer = nsRecords.iterator().next();
             }
-        } else {
-            System.err.println("query failed because no A/AAAA/CNAME found after querying all layers");
         }
+        return addresses;
+    }
+
+    /**
+     * Finds the zone a query for a host name should be sent to first. This is the closest
+     * enclosing zone whose delegation is cached and whose name servers have a known address, so
+     * that names in the same zone (e.g., neighbouring addresses under in-addr.arpa) reuse the
+     * delegations found by earlier lookups.
+     *
+     * @param hostName Host name about to be queried.
+     * @return The NS records of the zone, or an empty set if the root server should be used.
+     */
+    private static Set<ResourceRecord> closestDelegation(String hostName) {
+        return cache().getClosestNameservers(hostName, records -> !knownNameserverAddresses(records).isEmpty());
+    }
+
+    //the cache of the shard the current thread performs lookups for, or the default cache
+    private static DNSCache cache() {
+        ResolverShard shard = ResolverShard.current();
+        return shard == null ? cache : shard.getCache();
+    }
+
+    /**
+     * Returns the zone a set of records delegates to, i.e., the owner name of its NS records.
+     *
+     * @param records Set of records, normally from a referral.
+     * @return The owner name of the first NS record, or the empty string (the root) if there is none.
+     */
+    private static String zoneOf(Set<ResourceRecord> records) {
+        for (ResourceRecord r : records) {
+            if (r.getType() == RecordType.NS) return r.getHostName();
+        }
+        return "";
     }
 //
 
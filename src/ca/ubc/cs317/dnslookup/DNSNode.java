@@ -4,16 +4,31 @@ import java.io.Serializable;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. The numeric code of
+ * the type is kept as well, so nodes of different types unknown to RecordType (all OTHER) are
+ * still told apart.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     private String hostName;
     private RecordType type;
+    private int typeCode;
 
     public DNSNode(String hostName, RecordType type) {
         this.hostName = hostName;
         this.type = type;
+        this.typeCode = type.getCode();
+    }
+
+    /** Creates a node for a record type given by its code, which need not be known to RecordType.
+     *
+     * @param hostName Fully-qualified domain name.
+     * @param typeCode Record type code, between 0 and 65535.
+     */
+    public DNSNode(String hostName, int typeCode) {
+        this.hostName = hostName;
+        this.type = RecordType.getByCode(typeCode);
+        this.typeCode = typeCode;
     }
 
     public String getHostName() {
@@ -24,6 +39,23 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         return type;
     }
 
+    /** Returns the numeric code of the record type, which is the only way to tell apart types
+     * that are OTHER.
+     *
+     * @return The record type code, between 0 and 65535.
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /** Returns the mnemonic of the record type, or "TYPEnnn" (RFC 3597) for types that are OTHER.
+     *
+     * @return The name of the record type.
+     */
+    public String getTypeName() {
+        return type == RecordType.OTHER ? "TYPE" + typeCode : type.name();
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -32,26 +64,28 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         DNSNode dnsNode = (DNSNode) o;
 
         if (!hostName.equals(dnsNode.hostName)) return false;
-        return type == dnsNode.type;
+        return type == dnsNode.type && typeCode == dnsNode.typeCode;
     }
 
     @Override
     public int hashCode() {
         int result = hostName.hashCode();
-        result = 31 * result + type.hashCode();
+        result = 31 * result + typeCode;
         return result;
     }
 
     @Override
     public String toString() {
-        return hostName + " (" + type + ")";
+        return hostName + " (" + getTypeName() + ")";
     }
 
     @Override
     public int compareTo(DNSNode o) {
         if (!hostName.equalsIgnoreCase(o.hostName))
             return hostName.compareToIgnoreCase(o.hostName);
-        else
+        else if (type != o.type)
             return type.compareTo(o.type);
+        else
+            return Integer.compare(typeCode, o.typeCode);
     }
 }
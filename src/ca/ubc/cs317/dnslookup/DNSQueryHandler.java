@@ -1,6 +1,7 @@
 package ca.ubc.cs317.dnslookup;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.util.*;
@@ -8,27 +9,53 @@ import java.util.*;
 public class DNSQueryHandler {
 
     private static final int DEFAULT_DNS_PORT = 53;
-    private static DatagramSocket socket;
-    private static boolean verboseTracing = false;
-
-    private static final Random random = new Random();
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int INITIAL_TIMEOUT_MS = 800;
+    private static final int MAX_TIMEOUT_MS = 4000;
+    private static final int MAX_TRANSMISSIONS = 5;
+    static final long DEFAULT_LOOKUP_BUDGET_MS = 15000;
+    private static final double SERVER_QUERIES_PER_SECOND = 50;
+    private static final double SERVER_BURST = 20;
+    private static final double ZONE_QUERIES_PER_SECOND = 100;
+    private static final double ZONE_BURST = 50;
+    private static final int MAX_OUTSTANDING_PER_SERVER = 32;
+    private static final int DEFAULT_MAX_IN_FLIGHT = 64;
+    private static SocketPool socketPool;
+    private static volatile int serverPort = DEFAULT_DNS_PORT;
+    private static volatile QueryThrottle queryThrottle = new QueryThrottle(SERVER_QUERIES_PER_SECOND, SERVER_BURST,
+            ZONE_QUERIES_PER_SECOND, ZONE_BURST, MAX_OUTSTANDING_PER_SERVER);
+    private static volatile boolean verboseTracing = false;
 
     /**
-     * Sets up the socket and set the timeout to 5 seconds
+     * Sets up the pool of sockets used to send queries, each on a random source port, with
+     * enough sockets for DEFAULT_MAX_IN_FLIGHT queries to be waiting for a reply at once.
      *
-     * @throws SocketException if the socket could not be opened, or if there was an
+     * @throws SocketException if the sockets could not be opened, or if there was an
      *                         error with the underlying protocol
      */
     public static void openSocket() throws SocketException {
-        socket = new DatagramSocket();
-        socket.setSoTimeout(5000);
+        openSocket(DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Sets up the pool of sockets used to send queries, each on a random source port. A query
+     * holds a socket until its reply arrives, so the pool limits the number of queries in
+     * flight; further queries wait for a socket to be released.
+     *
+     * @param maxInFlight Number of queries that may be waiting for a reply at once, e.g., the
+     *                    number of threads performing lookups.
+     * @throws SocketException if the sockets could not be opened, or if there was an
+     *                         error with the underlying protocol
+     */
+    public static void openSocket(int maxInFlight) throws SocketException {
+        socketPool = new SocketPool(maxInFlight);
     }
 
     /**
-     * Closes the socket
+     * Closes the sockets
      */
     public static void closeSocket() {
-        socket.close();
+        socketPool.close();
     }
 
     /**
@@ -39,49 +66,198 @@ public class DNSQueryHandler {
     }
 
     /**
-     * Builds the query, sends it to the server, and returns the response.
+     * Sets the UDP port queries are sent to, and replies are expected from. This is 53 unless
+     * queries are sent to test servers (see FakeDNSHierarchy).
+     */
+    public static void setServerPort(int port) {
+        serverPort = port;
+    }
+
+    /**
+     * Replaces the limits applied to outgoing queries. Queries already being sent keep using the
+     * limits they started with.
+     */
+    public static void setThrottle(QueryThrottle throttle) {
+        queryThrottle = throttle;
+    }
+
+    /**
+     * Builds the query, sends it to the server, and returns the response. The lookup is given
+     * a default time budget of its own.
      *
      * @param message Byte array used to store the query to DNS servers.
      * @param server  The IP address of the server to which the query is being sent.
      * @param node    Host and record type to be used for search.
      * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
-     * @throws IOException if an IO Exception occurs
+     * @throws IOException if an IO Exception occurs, or if the server did not respond in time
      */
     public static DNSServerResponse buildAndSendQuery(byte[] message, InetAddress server,
                                                       DNSNode node) throws IOException {
-        // TODO (PART 1): Implement this
-        //setup header
-        int id = random.nextInt(0xffff);
-//        System.out.println(String.format("0x%04X", id));
-        if (verboseTracing) {
-            System.out.println("\n\n");
-            System.out.printf("Query ID:     %s %s  %s --> %s\n", id, node.getHostName(), node.getType(), server.getHostAddress());
+        return buildAndSendQuery(message, Collections.singletonList(server), node,
+                new LookupContext(DEFAULT_LOOKUP_BUDGET_MS));
+    }
+
+    /**
+     * Builds the query, sends it to the first server, and returns the first matching response.
+     * If no response arrives within the current timeout, the query is retransmitted to the next
+     * server in the list (wrapping around to the first one), and the timeout is doubled, up to
+     * MAX_TIMEOUT_MS. Replies with a different transaction ID or question, or from a server
+     * that was not queried, are discarded without ending the wait. No transmission is made
+     * once the deadline of the lookup has been reached.
+     *
+     * @param message Byte array used to store the query to DNS servers.
+     * @param servers The IP addresses of the equivalent servers the query may be sent to.
+     * @param node    Host and record type to be used for search.
+     * @param context Lookup on behalf of which the query is sent, providing the deadline.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if an IO Exception occurs, or if no server responded in time
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, List<InetAddress> servers,
+                                                      DNSNode node, LookupContext context) throws IOException {
+        return buildAndSendQuery(message, servers, null, node, context, false);
+    }
+
+    /**
+     * Builds the query, sends it to the servers as described above, and returns the first
+     * matching response, optionally asking the servers to resolve the query recursively.
+     * Every transmission is subject to the rate limits of the destination server and of the
+     * zone, and waits for its turn if the server already has too many outstanding queries.
+     *
+     * @param message          Byte array used to store the query to DNS servers.
+     * @param servers          The IP addresses of the equivalent servers the query may be sent to.
+     * @param zone             Zone the servers are name servers for, used for per-zone rate
+     *                         limiting, or null if not applicable.
+     * @param node             Host and record type to be used for search.
+     * @param context          Lookup on behalf of which the query is sent, providing the deadline.
+     * @param recursionDesired true to set the RD flag (e.g., when forwarding to a recursive
+     *                         resolver), false for an iterative query.
+     * @return A DNSServerResponse Object containing the response buffer and the transaction ID.
+     * @throws IOException if an IO Exception occurs, or if no server responded in time
+     */
+    public static DNSServerResponse buildAndSendQuery(byte[] message, List<InetAddress> servers, String zone, DNSNode node,
+                                                      LookupContext context, boolean recursionDesired) throws IOException {
+        return buildAndSendQuery(message, servers, zone, node, context, recursionDesired, currentSockets(), queryThrottle);
+    }
+
+    /**
+     * Builds the query and sends it as described above, using sockets from a specific pool and
+     * applying specific limits, rather than those of the current shard and the default limits.
+     *
+     * @param sockets  Pool the socket used to send the query is taken from.
+     * @param throttle Limits applied to the query.
+     */
+    static DNSServerResponse buildAndSendQuery(byte[] message, List<InetAddress> servers, String zone, DNSNode node,
+                                               LookupContext context, boolean recursionDesired,
+                                               SocketPool sockets, QueryThrottle throttle) throws IOException {
+        if (servers.isEmpty())
+            throw new IOException("no server to send query for " + node + " to");
+
+        int id = SocketPool.randomTransactionID();
+        int queryLength = buildQuery(message, id, node, recursionDesired);
+
+        int port = serverPort;
+        long start = System.nanoTime();
+        long deadline = context.getDeadline();
+        //the first transmission waits for the throttle before taking a socket, so that queries held back by the
+        //limits do not keep sockets from queries that could be sent
+        InetAddress waitingOn = servers.get(0);
+        throttle.acquireOutstanding(waitingOn, deadline);
+        SocketPool.PooledSocket pooled = null;
+        boolean broken = true;
+        int transmissions = 0;
+        try {
+            throttle.awaitSendPermit(waitingOn, zone, deadline);
+            pooled = sockets.acquire(context.remainingMillis());
+            DatagramSocket socket = pooled.getSocket();
+            List<InetAddress> queried = new ArrayList<>();
+            int timeout = INITIAL_TIMEOUT_MS;
+            DatagramPacket reply = null;
+            InterruptedIOException throttled = null;
+            for (int attempt = 0; attempt < MAX_TRANSMISSIONS && !context.isExpired(); attempt++) {
+                InetAddress server = waitingOn;
+                if (attempt > 0) {
+                    //a query only counts as outstanding for the server it was last sent to; a retransmission stays
+                    //with that server if the next one cannot take another outstanding query right away
+                    InetAddress next = servers.get(attempt % servers.size());
+                    if (!next.equals(waitingOn) && throttle.tryAcquireOutstanding(next)) {
+                        throttle.releaseOutstanding(waitingOn);
+                        waitingOn = server = next;
+                    }
+                    //rather than sleeping on the rate limits with the socket held, keep listening for a late reply
+                    long readyAt;
+                    try {
+                        readyAt = throttle.reserveSendPermit(server, zone, deadline);
+                    } catch (InterruptedIOException e) {
+                        //no retransmission fits before the deadline; the query is recorded as unanswered below
+                        throttled = e;
+                        break;
+                    }
+                    reply = awaitReply(socket, message, queryLength, port, queried, readyAt);
+                    if (reply != null) break;
+                }
+                if (verboseTracing) {
+                    System.out.println("\n\n");
+                    System.out.printf("Query ID:     %s %s  %s --> %s\n", id, node.getHostName(), node.getType(), server.getHostAddress());
+                }
+                if (!queried.contains(server)) queried.add(server);
+                socket.send(new DatagramPacket(message, queryLength, server, port));
+                transmissions++;
+
+                long waitUntil = System.currentTimeMillis() + Math.min(timeout, context.remainingMillis());
+                reply = awaitReply(socket, message, queryLength, port, queried, waitUntil);
+                if (reply != null) break;
+
+                if (verboseTracing) System.out.println("time out");
+                timeout = Math.min(timeout * 2, MAX_TIMEOUT_MS);
+            }
+            broken = false;
+            if (reply != null) {
+                byte[] data = reply.getData();
+                context.recordQuery(new LookupResult.ServerQuery(node, zone, reply.getAddress(), transmissions,
+                        System.nanoTime() - start, data[3] & 0xf, (data[2] & 0x04) != 0));
+                return new DNSServerResponse(ByteBuffer.wrap(data, 0, reply.getLength()), id);
+            }
+            context.recordQuery(new LookupResult.ServerQuery(node, zone, null, transmissions,
+                    System.nanoTime() - start, -1, false));
+            if (throttled != null) throw throttled;
+            throw new SocketTimeoutException("no response received for " + node);
+        } finally {
+            throttle.releaseOutstanding(waitingOn);
+            if (pooled != null) {
+                try {
+                    sockets.release(pooled, broken);
+                } catch (SocketException e) {
+                    context.addError("could not replace a pooled socket: " + e.getMessage());
+                }
+            }
         }
+    }
+
+    //the sockets of the shard the calling thread belongs to, or the default pool
+    static SocketPool currentSockets() {
+        ResolverShard shard = ResolverShard.current();
+        return shard == null ? socketPool : shard.getSockets();
+    }
 
+    //writes the header and question for the node into message, and returns the length of the query
+    private static int buildQuery(byte[] message, int id, DNSNode node, boolean recursionDesired) {
+        clearMessageBuffer(message);
         //id
         message[0] = (byte) ((id & 0xff00) >> 8);
         message[1] = (byte) (id & 0x00ff);
         //1qr,4 opcode, 1AA,1TC,1RD,1RA, 3 Z, 4 r code
-        message[2] = (byte) 0;
+        message[2] = (byte) (recursionDesired ? 0x01 : 0);
         message[3] = (byte) 0;
         //q count
         message[4] = (byte) 0;
         message[5] = (byte) 1;
-        //a count
-        message[6] = (byte) 0;
-        message[7] = (byte) 0;
-        //ns count
-        message[8] = (byte) 0;
-        message[9] = (byte) 0;
-        //arcount
-        message[10] = (byte) 0;
-        message[11] = (byte) 0;
+        //a count, ns count and ar count are left as 0
 
         int byteOffset = 12;
         //dns question
         List<String> nameClasses = breakHostnameIntoClass(node);
         for (String name : nameClasses) {
-//            System.out.println(name);
+            if (name.isEmpty()) continue; // the root has no labels
             message[byteOffset] = (byte) name.length();
             byteOffset++;
             for (char c : name.toCharArray()) {
@@ -93,39 +269,54 @@ public class DNSQueryHandler {
         message[byteOffset] = (byte) 0;
         byteOffset++;
         //q type
-        message[byteOffset] = (byte) 0;
+        message[byteOffset] = (byte) ((node.getType().getCode() & 0xff00) >> 8);
         byteOffset++;
-        message[byteOffset] = (byte) node.getType().getCode();
+        message[byteOffset] = (byte) (node.getType().getCode() & 0x00ff);
         byteOffset++;
         //q class
         message[byteOffset] = (byte) 0;
         byteOffset++;
         message[byteOffset] = (byte) 1;
         byteOffset++;
+        return byteOffset;
+    }
 
-
-        DatagramPacket queryPacket = new DatagramPacket(message, byteOffset, server, DEFAULT_DNS_PORT);
-        socket.send(queryPacket);
-//        System.out.println("packet sent");
-        //clear buffer for receive
-        clearMessageBuffer(message);
+    //waits until waitUntil for a reply to the query in message. Packets that are not a reply to this query
+    //(e.g. late replies to an earlier query) are dropped. Returns null if no matching reply arrived in time.
+    private static DatagramPacket awaitReply(DatagramSocket socket, byte[] query, int queryLength, int port,
+                                             List<InetAddress> queried, long waitUntil) throws IOException {
         byte[] replyBytes = new byte[1024];
-        DatagramPacket replyPacket = new DatagramPacket(replyBytes, replyBytes.length, server, DEFAULT_DNS_PORT);
-        //receive response
-        socket.setSoTimeout(2000);
-        int attempts = 0;
-        while (bufferIsEmpty(replyBytes) && attempts < 3) {
+        DatagramPacket replyPacket = new DatagramPacket(replyBytes, replyBytes.length);
+        while (true) {
+            long remaining = waitUntil - System.currentTimeMillis();
+            if (remaining <= 0) return null;
+            socket.setSoTimeout((int) remaining);
+            replyPacket.setLength(replyBytes.length);
             try {
-                attempts++;
                 socket.receive(replyPacket);
-            } catch (SocketTimeoutException ignored) {
-                System.out.println("time out");
+            } catch (SocketTimeoutException e) {
+                return null;
             }
+            if (isReplyTo(replyPacket, query, queryLength, port, queried)) return replyPacket;
+            if (verboseTracing) System.out.println("discarding unexpected packet from " + replyPacket.getAddress().getHostAddress());
         }
-        if (bufferIsEmpty(replyBytes)) {
-            System.err.println("socket timed out while receiving");
+    }
+
+    //a reply must come from the port (53) of a server we queried, have the QR bit set, and echo our ID and question
+    private static boolean isReplyTo(DatagramPacket reply, byte[] query, int queryLength, int port, List<InetAddress> queried) {
+        byte[] data = reply.getData();
+        if (reply.getPort() != port || !queried.contains(reply.getAddress())) return false;
+        if (reply.getLength() < queryLength || (data[2] & 0x80) == 0) return false;
+        if (data[0] != query[0] || data[1] != query[1]) return false;
+        if (data[4] != 0 || data[5] != 1) return false;
+        for (int i = 12; i < queryLength; i++) {
+            if (asciiLowerCase(data[i]) != asciiLowerCase(query[i])) return false;
         }
-        return new DNSServerResponse(ByteBuffer.wrap(replyPacket.getData()), id);
+        return true;
+    }
+
+    private static int asciiLowerCase(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
     }
 
     //breaks the hostname in dnsnode into domain name classes: for example, www.google.com will be broken
@@ -145,27 +336,37 @@ public class DNSQueryHandler {
         return res;
     }
 
-    private static boolean bufferIsEmpty(byte[] buf) {
-        boolean ans = true;
-        for (byte b : buf) {
-            if (b != 0) {
-                ans = false;
-                break;
-            }
-        }
-        return ans;
+    /**
+     * Decodes the DNS server response and caches it. Every record is accepted, as from a trusted
+     * recursive resolver, but none is replicated to other cache shards, as where it comes from in
+     * the hierarchy is not known.
+     *
+     * @param transactionID  Transaction ID of the current communication with the DNS server
+     * @param responseBuffer DNS server's response
+     * @param cache          To store the decoded server's response
+     * @return A set of resource records corresponding to the name servers of the response.
+     */
+    public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
+                                                             DNSCache cache) {
+        return decodeAndCacheResponse(transactionID, responseBuffer, null, cache);
     }
 
     /**
-     * Decodes the DNS server response and caches it.
+     * Decodes the DNS server response and caches it. Only records whose owner name is at or below
+     * the zone the server was queried for (its bailiwick) are kept: a server has no authority over
+     * names outside its zone, so it must not be able to supply, e.g., the name servers of
+     * another zone or of its parent.
      *
      * @param transactionID  Transaction ID of the current communication with the DNS server
      * @param responseBuffer DNS server's response
+     * @param zone           Zone the server was queried as a name server for, without the
+     *                       trailing dot. The empty string (the root) accepts every record, as
+     *                       does null, for a server whose zone is not known.
      * @param cache          To store the decoded server's response
      * @return A set of resource records corresponding to the name servers of the response.
      */
     public static Set<ResourceRecord> decodeAndCacheResponse(int transactionID, ByteBuffer responseBuffer,
-                                                             DNSCache cache) {
+                                                             String zone, DNSCache cache) {
         // TODO (PART 1): Implement this
         byte[] message = responseBuffer.array();
         Set<ResourceRecord> resourceRecordsToReturn = new HashSet<>();
@@ -174,38 +375,58 @@ public class DNSQueryHandler {
         int index = 0;
         //check if there is anything in the buffer
         if (message[0] == (byte) ((transactionID & 0xff00) >> 8) && message[1] == (byte) (transactionID & 0x00ff)) {
-            index += 3;
-            //we are going to check if server returns error message, if so, we return empty set
-            if ((message[index] & 0xf) != 0) {
-                System.out.println("error " + (message[index] & 0xf));
-                return null;
+            index += 2;
+            boolean authoritative = (message[index] & 0x04) != 0;
+            index += 1;
+            boolean recursionAvailable = (message[index] & 0x80) != 0;
+            //we are going to check if server returns error message, if so, we return null.
+            //NXDOMAIN responses are still parsed, to find how long the name may be cached as nonexistent
+            int rcode = message[index] & 0xf;
+            if (rcode != 0) {
+                if (verboseTracing) System.out.println("error " + rcode);
+                if (rcode != RCODE_NXDOMAIN) return null;
             }
             index += 1;
             index += 2;
 
             //now we are at answer count in header
-            int numAnswers = (message[index] << 8) + message[index + 1];
+            int numAnswers = RDataCodecs.readUnsignedShort(message, index);
             index += 2;
             //now we are at ns count in header
-            int numNameServers = (message[index] << 8) + message[index + 1];
+            int numNameServers = RDataCodecs.readUnsignedShort(message, index);
             index += 2;
             //now we are at ar count
-            int numar = (message[index] << 8) + message[index + 1];
+            int numar = RDataCodecs.readUnsignedShort(message, index);
             index += 2;
 
-            //now we are at start of query name. we arent using the name for now, just traversing to increment the index
-            StringBuilder qName = new StringBuilder();
-            index = traverseTextAnswer(message, index, qName);
-            index += 4;
-
-            //now we are at start of first answer
-            //we will traverse every answer, and call helper function to create ResourceRecord instances according to whether
-            for (int i = 0; i < numAnswers + numNameServers; i++) {
-                index = parseAnswer(message, index, resourceRecordsToReturn);
-            }
-            //now we are at start of AR
-            for (int i = 0; i < numar; i++) {
-                index = parseAnswer(message, index, resourceRecordsToReturn);
+            try {
+                //now we are at start of query name. we arent using the name for now, just traversing to increment the index
+                StringBuilder qName = new StringBuilder();
+                index = RDataCodecs.readName(message, index, qName);
+                index += 4;
+
+                //now we are at start of first answer
+                //we will traverse every answer, and call helper function to create ResourceRecord instances according to whether
+                for (int i = 0; i < numAnswers + numNameServers; i++) {
+                    index = parseAnswer(message, index, responseBuffer.limit(), resourceRecordsToReturn);
+                }
+                //now we are at start of AR
+                for (int i = 0; i < numar; i++) {
+                    index = parseAnswer(message, index, responseBuffer.limit(), resourceRecordsToReturn);
+                }
+                resourceRecordsToReturn.removeIf(r -> {
+                    if (zone == null || DNSCache.isUnder(r.getHostName(), zone)) return false;
+                    if (verboseTracing) System.out.println("discarding " + r.getNode() + " outside of '" + zone + "'");
+                    return true;
+                });
+                if (rcode == RCODE_NXDOMAIN) {
+                    if (authoritative || recursionAvailable)
+                        cacheNonexistentName(qName.toString(), zone, resourceRecordsToReturn, cache);
+                    return null;
+                }
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                if (verboseTracing) System.out.println("malformed response: " + e.getMessage());
+                return null;
             }
 
             ArrayList<ResourceRecord> l = new ArrayList<>(resourceRecordsToReturn);
@@ -232,7 +453,7 @@ public class DNSQueryHandler {
                 ns++;
             }
             if (verboseTracing) {
-                System.out.printf("Response ID: %s Authoritative = %s\n", transactionID, resourceRecordsToReturn.size() == 0);
+                System.out.printf("Response ID: %s Authoritative = %s\n", transactionID, authoritative);
                 System.out.printf("  Nameservers (%s)\n", ns);
             }
 
@@ -245,51 +466,64 @@ public class DNSQueryHandler {
                     flag = true;
                 }
                 if (verboseTracing) {
-                    verbosePrintResourceRecord(r, r.getType().getCode());
+                    verbosePrintResourceRecord(r, r.getTypeCode());
                 }
-                cache.addResult(r);
+                cache.addResult(r, zone);
             }
         } else {
-            System.out.println("no valid response (transaction id dont match)");
+            if (verboseTracing) System.out.println("no valid response (transaction id dont match)");
         }
         return resourceRecordsToReturn;
     }
 
-    private static int parseAnswer(byte[] message, int index, Set<ResourceRecord> set) {
+    //caches the name an NXDOMAIN response is about: the query name, or the end of the CNAME chain starting at it
+    //in the answer section. Following RFC 2308, the name is cached for the lesser of the TTL of the SOA record in
+    //the authority section and its minimum field, and not cached at all if there is no SOA record. As everything
+    //below the name is then nonexistent too, nothing is cached unless the name is within the zone that was queried
+    //and the SOA record is for a zone above it, so a server cannot deny names outside its own zone.
+    private static void cacheNonexistentName(String qName, String zone, Set<ResourceRecord> records, DNSCache cache) {
+        String name = qName;
+        for (int i = 0; i < records.size(); i++) {
+            String next = null;
+            for (ResourceRecord r : records) {
+                if (r.getType() == RecordType.CNAME && r.getHostName().equalsIgnoreCase(name)) next = r.getTextResult();
+            }
+            if (next == null) break;
+            name = next;
+        }
+        if (zone != null && !DNSCache.isUnder(name, zone)) return;
+        for (ResourceRecord r : records) {
+            if (r.getType() == RecordType.SOA && DNSCache.isUnder(name, r.getHostName())) {
+                String[] fields = r.getTextResult().split(" ");
+                long minimum = Long.parseLong(fields[fields.length - 1]);
+                cache.addNonexistentName(name, Math.min(r.getTTL(), minimum));
+                return;
+            }
+        }
+    }
+
+    //parses the resource record at index, adds it to the set, and returns the index of the next record
+    private static int parseAnswer(byte[] message, int index, int end, Set<ResourceRecord> set) {
         StringBuilder name = new StringBuilder();
-        index = traverseTextAnswer(message, index, name);
+        index = RDataCodecs.readName(message, index, name);
 
         //now we are at type
-        int type = (message[index] & 0xff << 8) + (message[index + 1] & 0xff);
+        int type = RDataCodecs.readUnsignedShort(message, index);
         index += 2;
-        //now we are at class
-        int QClass = (message[index] & 0xff << 8) + (message[index + 1] & 0xff);
+        //now we are at class, which is always IN
         index += 2;
-        int ttl = ((message[index] & 0xff) << 24) + ((message[index + 1] & 0xff) << 16) + ((message[index + 2] & 0xff) << 8) + (message[index + 3]);
+        //TTLs with the most significant bit set are treated as 0 (RFC 2181)
+        long ttl = RDataCodecs.readUnsignedInt(message, index);
+        if (ttl > Integer.MAX_VALUE) ttl = 0;
         index += 4;
-        int dataLength = (message[index] & 0xff << 8) + (message[index + 1] & 0xff);
+        int dataLength = RDataCodecs.readUnsignedShort(message, index);
         index += 2;
-
-        if (type == RecordType.A.getCode() || type == RecordType.AAAA.getCode()) {
-            //address answer
-            int numbytes = 4;
-            if (type == RecordType.AAAA.getCode()) {
-                numbytes = 16;
-            }
-            byte[] ip = new byte[numbytes];
-            System.arraycopy(message, index, ip, 0, numbytes);
-            try {
-                set.add(new ResourceRecord(name.toString(), RecordType.getByCode(type), ttl, InetAddress.getByAddress(ip)));
-            } catch (UnknownHostException e) {
-                System.err.println("adding resource record failed because InetAddress v6 cannot be resolved");
-                throw new RuntimeException(e);
-            }
-        } else if (type == RecordType.NS.getCode() || type == RecordType.CNAME.getCode()) {
-            StringBuilder textAnswer = new StringBuilder();
-            traverseTextAnswer(message, index, textAnswer);
-//            System.out.println("next name server: " + nextNameServer);
-            set.add(new ResourceRecord(name.toString(), RecordType.getByCode(type), ttl, textAnswer.toString()));
+        if (index + dataLength > end) {
+            throw new IllegalArgumentException("record data exceeds message");
         }
+
+        ResourceRecord record = RDataCodecs.decode(message, index, dataLength, name.toString(), type, ttl);
+        if (record != null) set.add(record);
         index += dataLength;
         return index;
     }
@@ -329,50 +563,6 @@ public class DNSQueryHandler {
         Arrays.fill(buff, (byte) 0);
     }
 
-    //traverse a xxx.xxx.xxx name, including pointers, saves that text to the StringBuilder, and returns what the index should be set to.
-    private static int traverseTextAnswer(byte[] message, int index, StringBuilder name) {
-        int finalIndex = index;
-        int classNumber = (message[index] & 0xff);
-        boolean isLiteral = false; //this is here for the odd case where a pointer c0 points to index c0, without
-        //this check the program thinks the new index location is also a pointer.
-        while (classNumber != 0) {
-            if (classNumber == 0xc0 && !isLiteral) {
-                //compressed name
-                index = message[index + 1] & 0xff;
-                classNumber = (message[index] & 0xff);
-                if (classNumber == 0xc0) {
-                    isLiteral = true;
-                }
-            } else {
-                //read normally
-                index++;
-                for (int i = 0; i < classNumber; i++) {
-                    name.append((char) message[index]);
-                    index++;
-                }
-                name.append(".");
-                classNumber = (message[index] & 0xff);
-            }
-        }
-        if (name.length() > 0) {
-            name.deleteCharAt(name.length() - 1);
-        }
-//        System.out.println(name);
-        //calculate final index;
-        int compressed = 0;
-        while (message[finalIndex] != 0) {
-            if ((message[finalIndex] & 0xff) == 0xc0) {
-                compressed = 1;
-            }
-            finalIndex++;
-        }
-        if (compressed == 0) {
-            finalIndex++;
-        } //to get over the 00 byte indicating end of string
-
-        return finalIndex;
-    }
-
 //    f.gtld-servers.net
 
     private static void printRecords(Set<ResourceRecord> set) {
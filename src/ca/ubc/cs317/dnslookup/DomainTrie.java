@@ -0,0 +1,178 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/** A map from domain names to values, organized as a tree of labels following the DNS hierarchy:
+ * the children of the root are top-level domains, their children are second-level domains, and
+ * so on. Finding the values stored for the ancestors of a name takes time proportional to the
+ * number of labels in the name, regardless of how many names are stored. Labels are compared
+ * without regard to case. The trie may be used by several threads at the same time.
+ *
+ * @param <V> Type of the values associated to names.
+ */
+public class DomainTrie<V> {
+
+    private static class Node<V> {
+        private final Map<String, Node<V>> children = new ConcurrentHashMap<>();
+        private volatile V value;
+    }
+
+    private final Node<V> root = new Node<>();
+
+    /** Associates a value to a domain name, replacing any value previously associated to it.
+     *
+     * @param name  Domain name, without the trailing dot. The empty string is the root.
+     * @param value Value to be associated to the name.
+     */
+    public void put(String name, V value) {
+        Node<V> node = root;
+        for (int end = name.length(); end > 0; ) {
+            int dot = name.lastIndexOf('.', end - 1);
+            String label = name.substring(dot + 1, end).toLowerCase();
+            node = node.children.computeIfAbsent(label, l -> new Node<>());
+            end = dot;
+        }
+        node.value = value;
+    }
+
+    /** Returns the value associated to a domain name, first associating a new value obtained from
+     * a supplier if there is none. The supplier is called at most once for a name, even if
+     * several threads call this method for the same name at the same time.
+     *
+     * @param name     Domain name, without the trailing dot. The empty string is the root.
+     * @param supplier Supplier of the value to be associated to the name if it has none.
+     * @return The value associated to the name.
+     */
+    public V computeIfAbsent(String name, Supplier<V> supplier) {
+        Node<V> node = root;
+        for (int end = name.length(); end > 0; ) {
+            int dot = name.lastIndexOf('.', end - 1);
+            String label = name.substring(dot + 1, end).toLowerCase();
+            node = node.children.computeIfAbsent(label, l -> new Node<>());
+            end = dot;
+        }
+        V value = node.value;
+        if (value == null) {
+            synchronized (node) {
+                value = node.value;
+                if (value == null) node.value = value = supplier.get();
+            }
+        }
+        return value;
+    }
+
+    /** Returns the value associated to a domain name.
+     *
+     * @param name Domain name, without the trailing dot.
+     * @return The value associated to the name, or null if there is none.
+     */
+    public V get(String name) {
+        Node<V> node = find(name);
+        return node == null ? null : node.value;
+    }
+
+    /** Returns the value of the closest ancestor of a name (including the name itself) whose
+     * value satisfies a condition. The root is the most distant ancestor of every name.
+     *
+     * @param name      Domain name, without the trailing dot.
+     * @param condition Condition the value must satisfy.
+     * @return The value of the longest matching suffix of the name, or null if none matches.
+     */
+    public V findClosest(String name, Predicate<V> condition) {
+        Node<V> node = root;
+        V closest = null;
+        for (int end = name.length(); ; ) {
+            V value = node.value;
+            if (value != null && condition.test(value)) closest = value;
+            if (end <= 0) break;
+            int dot = name.lastIndexOf('.', end - 1);
+            node = node.children.get(name.substring(dot + 1, end).toLowerCase());
+            if (node == null) break;
+            end = dot;
+        }
+        return closest;
+    }
+
+    /** Returns true if a name or any of its ancestors has a value that satisfies a condition.
+     *
+     * @param name      Domain name, without the trailing dot.
+     * @param condition Condition the value must satisfy.
+     * @return true if a matching value is found at or above the name.
+     */
+    public boolean anyAncestor(String name, Predicate<V> condition) {
+        return findClosest(name, condition) != null;
+    }
+
+    /** Performs an action for a name and every name below it that has a value.
+     *
+     * @param name     Domain name, without the trailing dot. The empty string is the root.
+     * @param consumer Action performed with each name (in lower case) and its value.
+     */
+    public void forEachUnder(String name, BiConsumer<String, V> consumer) {
+        Node<V> node = find(name);
+        if (node != null) forEach(node, name.toLowerCase(), consumer);
+    }
+
+    /** Removes a name and every name below it from the trie.
+     *
+     * @param name Domain name, without the trailing dot. The empty string is the root, in which
+     *             case the trie is emptied.
+     */
+    public void removeUnder(String name) {
+        if (name.isEmpty()) {
+            root.children.clear();
+            root.value = null;
+            return;
+        }
+        int dot = name.indexOf('.');
+        Node<V> parent = dot < 0 ? root : find(name.substring(dot + 1));
+        if (parent != null) parent.children.remove(name.substring(0, dot < 0 ? name.length() : dot).toLowerCase());
+    }
+
+    /** Removes every value that satisfies a condition, along with the nodes left with neither a
+     * value nor children. A value put at the same time as its node is removed may be lost, so
+     * this is meant for tries used as caches.
+     *
+     * @param condition Condition the values to be removed satisfy.
+     * @return The number of values left in the trie.
+     */
+    public int removeIf(Predicate<V> condition) {
+        int[] left = new int[1];
+        removeIf(root, condition, left);
+        return left[0];
+    }
+
+    //returns true if the node has neither a value nor children left, and may be removed from its parent
+    private boolean removeIf(Node<V> node, Predicate<V> condition, int[] left) {
+        V value = node.value;
+        if (value != null && condition.test(value)) {
+            synchronized (node) {
+                if (node.value == value) node.value = null;
+            }
+        }
+        if (node.value != null) left[0]++;
+        node.children.entrySet().removeIf(child -> removeIf(child.getValue(), condition, left));
+        return node.value == null && node.children.isEmpty();
+    }
+
+    private void forEach(Node<V> node, String name, BiConsumer<String, V> consumer) {
+        V value = node.value;
+        if (value != null) consumer.accept(name, value);
+        for (Map.Entry<String, Node<V>> child : node.children.entrySet())
+            forEach(child.getValue(), name.isEmpty() ? child.getKey() : child.getKey() + "." + name, consumer);
+    }
+
+    private Node<V> find(String name) {
+        Node<V> node = root;
+        for (int end = name.length(); end > 0 && node != null; ) {
+            int dot = name.lastIndexOf('.', end - 1);
+            node = node.children.get(name.substring(dot + 1, end).toLowerCase());
+            end = dot;
+        }
+        return node;
+    }
+}
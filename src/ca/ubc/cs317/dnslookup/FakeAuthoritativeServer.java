@@ -0,0 +1,309 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** An authoritative DNS server answering UDP queries for one or more in-memory zones, used to
+ * test and benchmark the resolver without access to the internet. It answers with referrals for
+ * delegated names, authoritative answers (following CNAME records within the zone), and
+ * NXDOMAIN or empty answers with the SOA record of the zone.
+ *
+ * To exercise error handling, the server can be told to delay its responses, to drop queries,
+ * to truncate responses (setting the TC flag), or to send malformed responses, each with a given
+ * probability.
+ */
+public class FakeAuthoritativeServer implements Closeable {
+
+    private static final int MAX_UDP_PAYLOAD = 512;
+    private static final int MAX_CNAME_CHAIN = 8;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_REFUSED = 5;
+
+    private final DatagramSocket socket;
+    private final List<FakeZone> zones;
+    private final ScheduledExecutorService delayedReplies;
+    private final AtomicLong queriesReceived = new AtomicLong();
+    private volatile long latencyMillis = 0;
+    private volatile double lossRate = 0;
+    private volatile double truncationRate = 0;
+    private volatile double malformedRate = 0;
+
+    /** Creates a server for a set of zones and starts answering queries in the background.
+     *
+     * @param address Address the server listens on, e.g., 127.0.0.2.
+     * @param port    UDP port the server listens on.
+     * @param zones   Zones the server is authoritative for.
+     * @throws SocketException if the server socket could not be opened.
+     */
+    public FakeAuthoritativeServer(InetAddress address, int port, List<FakeZone> zones) throws SocketException {
+        this.socket = new DatagramSocket(new InetSocketAddress(address, port));
+        this.zones = new ArrayList<>(zones);
+        this.delayedReplies = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-dns-delay-" + address.getHostAddress());
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread receiver = new Thread(this::serve, "fake-dns-" + address.getHostAddress());
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /** Sets how long the server waits before sending each response. */
+    public void setLatency(long millis) {
+        latencyMillis = millis;
+    }
+
+    /** Sets the probability (between 0 and 1) that a query is ignored. */
+    public void setLossRate(double rate) {
+        lossRate = rate;
+    }
+
+    /** Sets the probability that a response is truncated, with the TC flag set. */
+    public void setTruncationRate(double rate) {
+        truncationRate = rate;
+    }
+
+    /** Sets the probability that a response is malformed (e.g., a compression pointer loop). */
+    public void setMalformedRate(double rate) {
+        malformedRate = rate;
+    }
+
+    /** Returns the number of queries received by this server since it started. */
+    public long getQueriesReceived() {
+        return queriesReceived.get();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+        delayedReplies.shutdownNow();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[MAX_UDP_PAYLOAD];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                return;
+            }
+            queriesReceived.incrementAndGet();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < lossRate) continue;
+
+            byte[] response;
+            try {
+                response = answer(buffer, packet.getLength());
+            } catch (RuntimeException e) {
+                continue; // query itself is malformed
+            }
+            if (random.nextDouble() < truncationRate) response = truncate(response);
+            else if (random.nextDouble() < malformedRate) response = corrupt(response, random);
+
+            DatagramPacket reply = new DatagramPacket(response, response.length, packet.getSocketAddress());
+            if (latencyMillis > 0)
+                delayedReplies.schedule(() -> send(reply), latencyMillis, TimeUnit.MILLISECONDS);
+            else
+                send(reply);
+        }
+    }
+
+    private void send(DatagramPacket reply) {
+        try {
+            socket.send(reply);
+        } catch (IOException ignored) {
+            // socket closed
+        }
+    }
+
+    private byte[] answer(byte[] query, int length) {
+        StringBuilder nameBuilder = new StringBuilder();
+        int questionEnd = RDataCodecs.readName(query, 12, nameBuilder) + 4;
+        if (questionEnd > length) throw new IllegalArgumentException("truncated question");
+        String qName = nameBuilder.toString().toLowerCase();
+        int qType = RDataCodecs.readUnsignedShort(query, questionEnd - 4);
+
+        ByteBuffer response = ByteBuffer.allocate(4096);
+        response.put(query, 0, questionEnd);
+        response.put(2, (byte) (0x80 | (query[2] & 0x79))); // QR, same opcode and RD
+        response.put(3, (byte) 0);
+        response.putShort(6, (short) 0).putShort(8, (short) 0).putShort(10, (short) 0);
+
+        FakeZone zone = null;
+        for (FakeZone z : zones)
+            if (z.isInZone(qName) && (zone == null || z.getOrigin().length() > zone.getOrigin().length())) zone = z;
+        if (zone == null) {
+            response.put(3, (byte) RCODE_REFUSED);
+            return finish(response);
+        }
+
+        String delegation = zone.findDelegation(qName);
+        if (delegation != null) {
+            // referral: NS records of the child zone, with glue
+            int authority = 0, additional = 0;
+            List<FakeZone.Record> nsRecords = new ArrayList<>();
+            for (FakeZone.Record r : zone.getRecords(delegation))
+                if (r.getType() == RecordType.NS) nsRecords.add(r);
+            for (FakeZone.Record r : nsRecords) {
+                writeRecord(response, r, qName);
+                authority++;
+            }
+            for (FakeZone.Record ns : nsRecords) {
+                for (FakeZone.Record r : zone.getRecords(ns.getData().toLowerCase())) {
+                    if (r.getType() == RecordType.A || r.getType() == RecordType.AAAA) {
+                        writeRecord(response, r, qName);
+                        additional++;
+                    }
+                }
+            }
+            response.putShort(8, (short) authority).putShort(10, (short) additional);
+            return finish(response);
+        }
+
+        response.put(2, (byte) (response.get(2) | 0x04)); // AA
+        int answers = 0;
+        String current = qName;
+        boolean answered = false;
+        for (int i = 0; i < MAX_CNAME_CHAIN && !answered; i++) {
+            FakeZone.Record cname = null;
+            for (FakeZone.Record r : zone.getRecords(current)) {
+                if (r.getType().getCode() == qType) {
+                    writeRecord(response, r, qName);
+                    answers++;
+                    answered = true;
+                } else if (r.getType() == RecordType.CNAME) {
+                    cname = r;
+                }
+            }
+            if (answered || cname == null) break;
+            writeRecord(response, cname, qName);
+            answers++;
+            current = cname.getData().toLowerCase();
+            if (!zone.isInZone(current) || zone.findDelegation(current) != null) {
+                answered = true; // the resolver follows the chain outside this zone
+            }
+        }
+        response.putShort(6, (short) answers);
+        if (!answered) {
+            if (!zone.exists(current)) response.put(3, (byte) RCODE_NXDOMAIN);
+            writeRecord(response, zone.getSOA(), qName);
+            response.putShort(8, (short) 1);
+        }
+        return finish(response);
+    }
+
+    //returns the response, truncated (with the TC flag) if it does not fit in a UDP payload
+    private static byte[] finish(ByteBuffer response) {
+        byte[] bytes = new byte[response.position()];
+        response.flip();
+        response.get(bytes);
+        return bytes.length <= MAX_UDP_PAYLOAD ? bytes : truncate(bytes);
+    }
+
+    //keeps the header and question only, setting the TC flag
+    private static byte[] truncate(byte[] response) {
+        int questionEnd = RDataCodecs.readName(response, 12, new StringBuilder()) + 4;
+        byte[] truncated = new byte[questionEnd];
+        System.arraycopy(response, 0, truncated, 0, questionEnd);
+        truncated[2] |= 0x02;
+        for (int i = 6; i < 12; i++) truncated[i] = 0;
+        return truncated;
+    }
+
+    //damages a response in one of several ways a buggy or hostile server might
+    private static byte[] corrupt(byte[] response, ThreadLocalRandom random) {
+        byte[] corrupted = response.clone();
+        int questionStart = 12;
+        switch (random.nextInt(3)) {
+            case 0: { // a compression pointer to itself where the first record name starts
+                // the question is left intact, so that the resolver accepts the reply and has to decode the loop
+                int recordStart = RDataCodecs.readName(corrupted, questionStart, new StringBuilder()) + 4;
+                if (recordStart + 2 > corrupted.length) {
+                    // no record to corrupt, so an answer made of the looping name alone is added
+                    corrupted = Arrays.copyOf(corrupted, recordStart + 2);
+                    corrupted[6] = 0;
+                    corrupted[7] = 1;
+                }
+                corrupted[recordStart] = (byte) (0xc0 | recordStart >> 8);
+                corrupted[recordStart + 1] = (byte) recordStart;
+                break;
+            }
+            case 1: // more answers announced than present
+                corrupted[6] = (byte) 0xff;
+                corrupted[7] = (byte) 0xff;
+                break;
+            default: // cut in the middle of the last record
+                return Arrays.copyOf(corrupted, Math.max(questionStart, corrupted.length - 3));
+        }
+        return corrupted;
+    }
+
+    private static void writeRecord(ByteBuffer response, FakeZone.Record record, String qName) {
+        String name = record.getName().toLowerCase();
+        if (name.equals(qName)) response.putShort((short) 0xc00c); // pointer to the question name
+        else writeName(response, name);
+        response.putShort((short) record.getType().getCode());
+        response.putShort((short) 1);
+        response.putInt((int) record.getTTL());
+        int lengthPosition = response.position();
+        response.putShort((short) 0);
+        writeData(response, record);
+        response.putShort(lengthPosition, (short) (response.position() - lengthPosition - 2));
+    }
+
+    private static void writeData(ByteBuffer response, FakeZone.Record record) {
+        String data = record.getData();
+        String[] fields = data.split(" ");
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                try {
+                    response.put(InetAddress.getByName(data).getAddress());
+                } catch (UnknownHostException e) {
+                    throw new IllegalArgumentException("invalid address " + data);
+                }
+                break;
+            case MX:
+                response.putShort((short) Integer.parseInt(fields[0]));
+                writeName(response, fields[1]);
+                break;
+            case SRV:
+                for (int i = 0; i < 3; i++) response.putShort((short) Integer.parseInt(fields[i]));
+                writeName(response, fields[3]);
+                break;
+            case SOA:
+                writeName(response, fields[0]);
+                writeName(response, fields[1]);
+                for (int i = 2; i < 7; i++) response.putInt((int) Long.parseLong(fields[i]));
+                break;
+            case TXT:
+                byte[] text = data.getBytes();
+                response.put((byte) text.length);
+                response.put(text);
+                break;
+            default: // NS, CNAME, DNAME, PTR
+                writeName(response, data);
+        }
+    }
+
+    private static void writeName(ByteBuffer response, String name) {
+        for (String label : name.split("\\.")) {
+            if (label.isEmpty()) continue;
+            response.put((byte) label.length());
+            response.put(label.getBytes());
+        }
+        response.put((byte) 0);
+    }
+}
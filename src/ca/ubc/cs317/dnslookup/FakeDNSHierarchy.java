@@ -0,0 +1,140 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A complete DNS hierarchy served from the loopback interface: a root server, servers for a
+ * number of top-level domains, and servers for a number of zones under each of them, each with
+ * a number of hosts. Every server listens on its own loopback address (127.0.0.2 for the root,
+ * 127.1.x.y for top-level domains, 127.2.x.y for the zones below them), all on the same port, so
+ * the resolver follows real referrals with real glue.
+ *
+ * Each zone has hosts host0 to hostN-1 with A and AAAA records, an alias "www" pointing to host0,
+ * and an MX record. The top-level domain LAME_TLD is delegated to a lame server (127.3.0.1),
+ * which is not authoritative for it and refers every query back to itself. Listening on loopback addresses other than 127.0.0.1 is supported on Linux,
+ * but may require configuration on other systems.
+ */
+public class FakeDNSHierarchy implements Closeable {
+
+    /** Top-level domain whose name server is lame; no name under it can be resolved. */
+    public static final String LAME_TLD = "lame";
+
+    private final List<FakeAuthoritativeServer> servers = new ArrayList<>();
+    private final List<String> hostNames = new ArrayList<>();
+    private final InetAddress rootAddress;
+
+    /** Creates and starts the servers of a hierarchy.
+     *
+     * @param port         UDP port all servers listen on.
+     * @param tlds         Number of top-level domains (tld0, tld1, ...).
+     * @param zonesPerTld  Number of zones under each top-level domain (zone0.tld0, ...).
+     * @param hostsPerZone Number of hosts in each zone.
+     * @param ttl          TTL of every record, in seconds. A TTL of 0 prevents any caching, so
+     *                     every lookup walks the whole hierarchy.
+     * @throws SocketException if a server socket could not be opened.
+     */
+    public FakeDNSHierarchy(int port, int tlds, int zonesPerTld, int hostsPerZone, long ttl) throws SocketException {
+        rootAddress = address(0, 0, 2);
+        FakeZone root = new FakeZone("", "a.root-servers.test", ttl);
+        try {
+            for (int t = 0; t < tlds; t++) {
+                String tld = "tld" + t;
+                InetAddress tldAddress = address(1, t / 250, t % 250 + 1);
+                root.delegate(tld, "ns." + tld, tldAddress, ttl);
+                FakeZone tldZone = new FakeZone(tld, "ns." + tld, ttl);
+                tldZone.add("ns." + tld, RecordType.A, ttl, tldAddress.getHostAddress());
+
+                for (int z = 0; z < zonesPerTld; z++) {
+                    String zone = "zone" + z + "." + tld;
+                    int serial = t * zonesPerTld + z;
+                    InetAddress zoneAddress = address(2, serial / 250, serial % 250 + 1);
+                    tldZone.delegate(zone, "ns." + zone, zoneAddress, ttl);
+                    servers.add(new FakeAuthoritativeServer(zoneAddress, port,
+                            Collections.singletonList(leafZone(zone, zoneAddress, hostsPerZone, ttl))));
+                }
+                servers.add(new FakeAuthoritativeServer(tldAddress, port, Collections.singletonList(tldZone)));
+            }
+
+            InetAddress lameAddress = address(3, 0, 1);
+            root.delegate(LAME_TLD, "ns." + LAME_TLD, lameAddress, ttl);
+            FakeZone lameRoot = new FakeZone("", "ns." + LAME_TLD, ttl)
+                    .delegate(LAME_TLD, "ns." + LAME_TLD, lameAddress, ttl);
+            servers.add(new FakeAuthoritativeServer(lameAddress, port, Collections.singletonList(lameRoot)));
+        } catch (SocketException e) {
+            close();
+            throw e;
+        }
+        servers.add(new FakeAuthoritativeServer(rootAddress, port, Collections.singletonList(root)));
+    }
+
+    private FakeZone leafZone(String zone, InetAddress zoneAddress, int hostsPerZone, long ttl) {
+        FakeZone leaf = new FakeZone(zone, "ns." + zone, ttl);
+        leaf.add(zone, RecordType.NS, ttl, "ns." + zone);
+        leaf.add("ns." + zone, RecordType.A, ttl, zoneAddress.getHostAddress());
+        leaf.add(zone, RecordType.MX, ttl, "10 host0." + zone);
+        for (int h = 0; h < hostsPerZone; h++) {
+            String host = "host" + h + "." + zone;
+            leaf.add(host, RecordType.A, ttl, "10." + (h >> 16 & 0xff) + "." + (h >> 8 & 0xff) + "." + (h & 0xff));
+            leaf.add(host, RecordType.AAAA, ttl, "2001:db8::" + Integer.toHexString(h));
+            hostNames.add(host);
+        }
+        if (hostsPerZone > 0) {
+            leaf.add("www." + zone, RecordType.CNAME, ttl, "host0." + zone);
+            hostNames.add("www." + zone);
+        }
+        return leaf;
+    }
+
+    private static InetAddress address(int b, int c, int d) {
+        try {
+            return InetAddress.getByAddress(new byte[]{127, (byte) b, (byte) c, (byte) d});
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Returns the address of the root server of the hierarchy. */
+    public InetAddress getRootAddress() {
+        return rootAddress;
+    }
+
+    /** Returns the names of all hosts (including aliases) defined in the hierarchy. */
+    public List<String> getHostNames() {
+        return Collections.unmodifiableList(hostNames);
+    }
+
+    /** Applies the same fault settings to every server of the hierarchy.
+     *
+     * @param latencyMillis  Delay before each response is sent.
+     * @param lossRate       Probability that a query is ignored.
+     * @param truncationRate Probability that a response is truncated.
+     * @param malformedRate  Probability that a response is malformed.
+     */
+    public void setFaults(long latencyMillis, double lossRate, double truncationRate, double malformedRate) {
+        for (FakeAuthoritativeServer server : servers) {
+            server.setLatency(latencyMillis);
+            server.setLossRate(lossRate);
+            server.setTruncationRate(truncationRate);
+            server.setMalformedRate(malformedRate);
+        }
+    }
+
+    /** Returns the total number of queries received by all servers of the hierarchy. */
+    public long getQueriesReceived() {
+        long total = 0;
+        for (FakeAuthoritativeServer server : servers)
+            total += server.getQueriesReceived();
+        return total;
+    }
+
+    @Override
+    public void close() {
+        for (FakeAuthoritativeServer server : servers)
+            server.close();
+    }
+}
@@ -0,0 +1,159 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.*;
+
+/** An in-memory DNS zone, served by a FakeAuthoritativeServer. A zone has an origin (e.g.,
+ * example.com, or the empty string for the root zone), an SOA record, and any number of records
+ * for names at or below its origin. Delegations to child zones are NS records (with glue) for a
+ * name below the origin.
+ */
+public class FakeZone {
+
+    /** A record as it is defined in the zone. Unlike ResourceRecord, its TTL does not decrease
+     * over time. The data is in the same textual form used by ResourceRecord (e.g., "10
+     * mail.example.com" for an MX record).
+     */
+    public static class Record {
+        private final String name;
+        private final RecordType type;
+        private final long ttl;
+        private final String data;
+
+        public Record(String name, RecordType type, long ttl, String data) {
+            this.name = name;
+            this.type = type;
+            this.ttl = ttl;
+            this.data = data;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public RecordType getType() {
+            return type;
+        }
+
+        public long getTTL() {
+            return ttl;
+        }
+
+        public String getData() {
+            return data;
+        }
+    }
+
+    private final String origin;
+    private final Record soa;
+    private final Map<String, List<Record>> records = new HashMap<>();
+    private final Set<String> existingNames = new HashSet<>();
+    private final Set<String> delegations = new HashSet<>();
+
+    /** Creates a zone containing only its SOA record.
+     *
+     * @param origin      Name of the zone, without the trailing dot. The empty string is the root.
+     * @param primary     Name of the primary name server, used in the SOA record.
+     * @param negativeTtl TTL of the SOA record and its minimum field, which is how long
+     *                    resolvers may cache negative answers from this zone.
+     */
+    public FakeZone(String origin, String primary, long negativeTtl) {
+        this.origin = origin.toLowerCase();
+        this.soa = new Record(origin, RecordType.SOA, negativeTtl,
+                primary + " hostmaster." + (origin.isEmpty() ? "invalid" : origin) + " 1 7200 900 1209600 " + negativeTtl);
+        add(soa);
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+
+    public Record getSOA() {
+        return soa;
+    }
+
+    /** Adds a record to the zone.
+     *
+     * @param name Owner name of the record, at or below the origin.
+     * @param type Record type.
+     * @param ttl  TTL of the record, in seconds.
+     * @param data Record data, in textual form.
+     * @return This zone, so that calls can be chained.
+     */
+    public FakeZone add(String name, RecordType type, long ttl, String data) {
+        return add(new Record(name, type, ttl, data));
+    }
+
+    private FakeZone add(Record record) {
+        String name = record.getName().toLowerCase();
+        if (!isInZone(name)) throw new IllegalArgumentException(name + " is not in zone '" + origin + "'");
+        records.computeIfAbsent(name, n -> new ArrayList<>()).add(record);
+        for (String n = name; ; n = n.substring(n.indexOf('.') + 1)) {
+            existingNames.add(n);
+            if (n.equals(origin) || n.indexOf('.') < 0) break;
+        }
+        existingNames.add(origin);
+        return this;
+    }
+
+    /** Delegates a child zone to a name server, adding the NS record and the glue A or AAAA
+     * record of the name server.
+     *
+     * @param child     Name of the child zone, below the origin.
+     * @param nsName    Name of the name server of the child zone.
+     * @param nsAddress Address of the name server.
+     * @param ttl       TTL of the NS and glue records.
+     * @return This zone, so that calls can be chained.
+     */
+    public FakeZone delegate(String child, String nsName, InetAddress nsAddress, long ttl) {
+        add(child, RecordType.NS, ttl, nsName);
+        if (isInZone(nsName.toLowerCase()))
+            add(nsName, nsAddress.getAddress().length == 4 ? RecordType.A : RecordType.AAAA, ttl,
+                    nsAddress.getHostAddress());
+        delegations.add(child.toLowerCase());
+        return this;
+    }
+
+    /** Returns true if a name is at or below the origin of this zone.
+     *
+     * @param name Domain name, in lower case.
+     * @return true if the name belongs in this zone (or in a zone delegated from it).
+     */
+    public boolean isInZone(String name) {
+        return origin.isEmpty() || name.equals(origin) || name.endsWith("." + origin);
+    }
+
+    /** Returns the records of a name, of any type.
+     *
+     * @param name Domain name, in lower case.
+     * @return A potentially empty list of records.
+     */
+    public List<Record> getRecords(String name) {
+        List<Record> result = records.get(name);
+        return result == null ? Collections.emptyList() : result;
+    }
+
+    /** Returns true if a name has records in this zone, or has names with records below it.
+     *
+     * @param name Domain name, in lower case.
+     * @return true if the name exists.
+     */
+    public boolean exists(String name) {
+        return existingNames.contains(name);
+    }
+
+    /** Returns the delegated child zone a name belongs to, if any.
+     *
+     * @param name Domain name, in lower case.
+     * @return The child zone at or above the name, or null if the name is answered by this zone.
+     */
+    public String findDelegation(String name) {
+        for (String n = name; !n.equals(origin) && isInZone(n); ) {
+            if (delegations.contains(n)) return n;
+            int dot = n.indexOf('.');
+            if (dot < 0) break;
+            n = n.substring(dot + 1);
+        }
+        return null;
+    }
+}
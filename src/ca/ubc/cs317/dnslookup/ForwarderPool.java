@@ -0,0 +1,172 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** This class handles a pool of upstream recursive resolvers that queries are forwarded to,
+ * instead of being resolved iteratively from the root. Each query goes to the healthy upstream
+ * with the fewest outstanding queries; if it does not respond in time, the query fails over to
+ * the next one. An upstream that fails MAX_FAILURES times in a row is marked down and is only
+ * used again as a last resort, until a periodic health check finds it responsive again.
+ */
+public class ForwarderPool {
+
+    private static final long UPSTREAM_TIMEOUT_MS = 2000;
+    private static final int MAX_FAILURES = 3;
+    private static final long HEALTH_CHECK_INTERVAL_MS = 10000;
+    private static final DNSNode HEALTH_CHECK_QUERY = new DNSNode("", RecordType.NS);
+    private static final int MAX_OUTSTANDING_PER_UPSTREAM = 256;
+
+    private final List<Upstream> upstreams = new ArrayList<>();
+    private final ScheduledExecutorService healthChecker;
+    //the rate limits protect authoritative servers from batch workloads; upstreams are resolvers meant to take the
+    //whole load of the clients, so only the number of queries waiting for each of them is limited
+    private final QueryThrottle throttle = new QueryThrottle(Double.MAX_VALUE, Double.MAX_VALUE,
+            Double.MAX_VALUE, Double.MAX_VALUE, MAX_OUTSTANDING_PER_UPSTREAM);
+    //the health checks run outside of any shard, and may run when the default socket pool is not open
+    private SocketPool healthCheckSockets;
+    private volatile String healthCheckFailure = null;
+
+    private static class Upstream {
+        private final InetAddress address;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+        private Upstream(InetAddress address) {
+            this.address = address;
+        }
+
+        private boolean isHealthy() {
+            return consecutiveFailures.get() < MAX_FAILURES;
+        }
+    }
+
+    /** Creates a pool forwarding to the specified resolvers, and starts checking their health
+     * in the background.
+     *
+     * @param addresses Addresses of the upstream recursive resolvers.
+     */
+    public ForwarderPool(List<InetAddress> addresses) {
+        for (InetAddress address : addresses)
+            upstreams.add(new Upstream(address));
+
+        healthChecker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "forwarder-health-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_INTERVAL_MS,
+                HEALTH_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends a query with the RD (recursion desired) flag set to the upstreams, in order of
+     * preference, until one of them responds.
+     *
+     * @param message Byte array used to store the query.
+     * @param node    Host and record type to be used for search.
+     * @param context Lookup on behalf of which the query is sent, providing the deadline.
+     * @return The response of the first upstream to respond.
+     * @throws IOException if no upstream responded before the deadline of the lookup.
+     */
+    public DNSServerResponse query(byte[] message, DNSNode node, LookupContext context) throws IOException {
+        IOException lastFailure = new IOException("no upstream resolver configured");
+        for (Upstream upstream : candidates()) {
+            if (context.isExpired()) break;
+            LookupContext attemptContext = context.limitedTo(UPSTREAM_TIMEOUT_MS);
+            upstream.outstanding.incrementAndGet();
+            try {
+                DNSServerResponse response = DNSQueryHandler.buildAndSendQuery(message,
+                        Collections.singletonList(upstream.address), null, node, attemptContext, true,
+                        DNSQueryHandler.currentSockets(), throttle);
+                upstream.consecutiveFailures.set(0);
+                return response;
+            } catch (SocketTimeoutException e) {
+                upstream.consecutiveFailures.incrementAndGet();
+                lastFailure = e;
+            } catch (InterruptedIOException e) {
+                //the query was held back locally (no socket, or too many outstanding queries) and never reached the upstream
+                lastFailure = e;
+            } catch (IOException e) {
+                upstream.consecutiveFailures.incrementAndGet();
+                lastFailure = e;
+            } finally {
+                upstream.outstanding.decrementAndGet();
+            }
+        }
+        throw lastFailure;
+    }
+
+    /** Stops the background health checks. */
+    public void close() {
+        healthChecker.shutdownNow();
+        synchronized (this) {
+            if (healthCheckSockets != null) healthCheckSockets.close();
+        }
+    }
+
+    /** Returns the addresses of the upstreams, and whether each is currently healthy, followed by
+     * the reason the last health check could not be completed, if it could not.
+     *
+     * @return One line of text per upstream, and possibly one more about the health checks.
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Upstream upstream : upstreams)
+            lines.add(String.format("%-40s %-5s %d outstanding", upstream.address.getHostAddress(),
+                    upstream.isHealthy() ? "UP" : "DOWN", upstream.outstanding.get()));
+        String failure = healthCheckFailure;
+        if (failure != null) lines.add("last health check failed: " + failure);
+        return lines;
+    }
+
+    //healthy upstreams first, fewest outstanding queries first; ties are broken randomly to spread the load
+    private List<Upstream> candidates() {
+        //the counters change concurrently, so the sort keys are read once before sorting
+        Map<Upstream, Long> preference = new HashMap<>();
+        for (Upstream upstream : upstreams)
+            preference.put(upstream, (upstream.isHealthy() ? 0 : 1L << 32) + upstream.outstanding.get());
+        List<Upstream> candidates = new ArrayList<>(upstreams);
+        Collections.shuffle(candidates, ThreadLocalRandom.current());
+        candidates.sort(Comparator.comparing(preference::get));
+        return candidates;
+    }
+
+    //probes every upstream that is marked down; any response marks it healthy again. An exception escaping
+    //this method would cancel all later checks, so none is allowed to: it is kept for describe() instead.
+    private void checkHealth() {
+        try {
+            for (Upstream upstream : upstreams) {
+                if (upstream.isHealthy()) continue;
+                try {
+                    DNSQueryHandler.buildAndSendQuery(new byte[512], Collections.singletonList(upstream.address),
+                            null, HEALTH_CHECK_QUERY, new LookupContext(UPSTREAM_TIMEOUT_MS), true, healthCheckSockets(), throttle);
+                    upstream.consecutiveFailures.set(0);
+                } catch (IOException ignored) {
+                    // still down, check again later
+                }
+            }
+            healthCheckFailure = null;
+        } catch (RuntimeException e) {
+            healthCheckFailure = e.toString();
+        }
+    }
+
+    private synchronized SocketPool healthCheckSockets() throws SocketException {
+        if (healthCheckSockets == null) healthCheckSockets = new SocketPool(1);
+        return healthCheckSockets;
+    }
+}
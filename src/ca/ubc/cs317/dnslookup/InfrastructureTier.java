@@ -0,0 +1,91 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Keeps the records at the top of the DNS hierarchy replicated in every cache shard of a
+ * ShardedResolver. These are the NS records of the root and of top-level domains, and the
+ * addresses of their name servers: nearly every lookup starts from them, whichever shard it is
+ * routed to, and they rarely change. When a shard caches one of them, it is copied into every
+ * other shard, so that each shard reads them from its own cache. Only records received from the
+ * root or top-level name servers, and within their zone, are replicated: a record one shard was
+ * fooled into caching must not spread to every other shard.
+ */
+public class InfrastructureTier {
+
+    private static final int MAX_INFRASTRUCTURE_LABELS = 1;
+    private static final int MIN_NAMESERVER_SWEEP_SIZE = 1024;
+
+    private final List<DNSCache> replicas = new CopyOnWriteArrayList<>();
+    //the name servers named in infrastructure NS records, with the NS record of each that expires last
+    private final Map<String, ResourceRecord> nameservers = new ConcurrentHashMap<>();
+    private volatile int nameserverSweepSize = MIN_NAMESERVER_SWEEP_SIZE;
+
+    /** Adds a cache to the caches the infrastructure records are replicated in.
+     *
+     * @param cache Cache shard.
+     */
+    void addReplica(DNSCache cache) {
+        replicas.add(cache);
+    }
+
+    /** Returns true if a record belongs in this tier. The name of the name server in an NS record
+     * of the root or a top-level domain is remembered for as long as the NS record is valid, so
+     * that its address records, which are cached after the NS records in the same response, are
+     * recognized as well. Names whose NS records have expired are forgotten when next checked,
+     * and by a sweep run whenever twice as many names are remembered as after the last sweep.
+     *
+     * @param record Record about to be cached.
+     * @param zone   Zone whose name servers supplied the record, or null if not known.
+     * @return true if the record should be replicated.
+     */
+    boolean isInfrastructure(ResourceRecord record, String zone) {
+        if (zone == null || labels(zone) > MAX_INFRASTRUCTURE_LABELS || !DNSCache.isUnder(record.getHostName(), zone))
+            return false;
+        switch (record.getType()) {
+            case NS:
+                if (labels(record.getHostName()) > MAX_INFRASTRUCTURE_LABELS) return false;
+                rememberNameserver(record);
+                return true;
+            case A:
+            case AAAA:
+                String name = record.getHostName().toLowerCase();
+                ResourceRecord ns = nameservers.get(name);
+                if (ns == null) return false;
+                if (ns.isStillValid()) return true;
+                nameservers.remove(name, ns);
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private void rememberNameserver(ResourceRecord ns) {
+        nameservers.merge(ns.getTextResult().toLowerCase(), ns,
+                (oldRecord, newRecord) -> oldRecord.expiresBefore(newRecord) ? newRecord : oldRecord);
+        if (nameservers.size() >= nameserverSweepSize) {
+            nameservers.values().removeIf(record -> !record.isStillValid());
+            nameserverSweepSize = Math.max(MIN_NAMESERVER_SWEEP_SIZE, 2 * nameservers.size());
+        }
+    }
+
+    /** Copies a record cached in one shard to every other shard.
+     *
+     * @param origin Cache the record was added to.
+     * @param record Record to be replicated.
+     */
+    void replicate(DNSCache origin, ResourceRecord record) {
+        for (DNSCache replica : replicas)
+            if (replica != origin) replica.storeResult(record);
+    }
+
+    private static int labels(String hostName) {
+        if (hostName.isEmpty()) return 0;
+        int labels = 1;
+        for (int i = 0; i < hostName.length(); i++)
+            if (hostName.charAt(i) == '.') labels++;
+        return labels;
+    }
+}
@@ -0,0 +1,162 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/** Load generator for the resolver. It starts a FakeDNSHierarchy on the loopback interface,
+ * points the resolver at its root server, and performs lookups of random host names from the
+ * hierarchy at a target rate for a given duration. It then reports the achieved throughput and
+ * latency percentiles.
+ *
+ * Lookups are started on a fixed schedule regardless of how long earlier lookups take, and their
+ * latency is measured from the time they were scheduled to start, so a resolver that falls
+ * behind shows up in the latencies rather than silently lowering the rate.
+ */
+public class LoadGenerator {
+
+    private static final String USAGE = "Usage: java -cp bin ca.ubc.cs317.dnslookup.LoadGenerator [options]\n" +
+            "\t-qps N          target lookups per second (default 1000)\n" +
+            "\t-duration S     seconds to run (default 10)\n" +
+            "\t-threads N      lookups in progress at once (default 64)\n" +
+            "\t-shards N       resolve with a ShardedResolver of N shards (default 0: unsharded)\n" +
+            "\t-port P         UDP port of the fake servers (default 5300)\n" +
+            "\t-tlds N         top-level domains (default 4)\n" +
+            "\t-zones N        zones per top-level domain (default 25)\n" +
+            "\t-hosts N        hosts per zone (default 20)\n" +
+            "\t-ttl S          TTL of all records (default 300)\n" +
+            "\t-latency MS     server response delay (default 0)\n" +
+            "\t-loss P         probability a query is dropped (default 0)\n" +
+            "\t-truncate P     probability a response is truncated (default 0)\n" +
+            "\t-malformed P    probability a response is malformed (default 0)\n" +
+            "\t-lame P         probability a lookup is for a name behind a lame delegation (default 0)\n" +
+            "\t-throttled      keep the resolver's default rate limits";
+
+    /**
+     * Main function, called when the load generator is invoked.
+     *
+     * @param args options, as listed in USAGE.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int qps = 1000, duration = 10, threads = 64, shards = 0, port = 5300, tlds = 4, zones = 25, hosts = 20;
+        long ttl = 300, latency = 0;
+        double loss = 0, truncate = 0, malformed = 0, lame = 0;
+        boolean throttled = false;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-qps": qps = Integer.parseInt(args[++i]); break;
+                    case "-duration": duration = Integer.parseInt(args[++i]); break;
+                    case "-threads": threads = Integer.parseInt(args[++i]); break;
+                    case "-shards": shards = Integer.parseInt(args[++i]); break;
+                    case "-port": port = Integer.parseInt(args[++i]); break;
+                    case "-tlds": tlds = Integer.parseInt(args[++i]); break;
+                    case "-zones": zones = Integer.parseInt(args[++i]); break;
+                    case "-hosts": hosts = Integer.parseInt(args[++i]); break;
+                    case "-ttl": ttl = Long.parseLong(args[++i]); break;
+                    case "-latency": latency = Long.parseLong(args[++i]); break;
+                    case "-loss": loss = Double.parseDouble(args[++i]); break;
+                    case "-truncate": truncate = Double.parseDouble(args[++i]); break;
+                    case "-malformed": malformed = Double.parseDouble(args[++i]); break;
+                    case "-lame": lame = Double.parseDouble(args[++i]); break;
+                    case "-throttled": throttled = true; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        } catch (RuntimeException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        try (FakeDNSHierarchy hierarchy = new FakeDNSHierarchy(port, tlds, zones, hosts, ttl)) {
+            hierarchy.setFaults(latency, loss, truncate, malformed);
+            DNSQueryHandler.setServerPort(port);
+            if (!throttled)
+                DNSQueryHandler.setThrottle(new QueryThrottle(Double.MAX_VALUE, Double.MAX_VALUE,
+                        Double.MAX_VALUE, Double.MAX_VALUE, Integer.MAX_VALUE));
+            DNSQueryHandler.openSocket(threads);
+            DNSLookupService.setRootServer(hierarchy.getRootAddress());
+
+            System.out.printf("Fake hierarchy: %d zones, %d names, root at %s port %d\n", tlds * zones,
+                    hierarchy.getHostNames().size(), hierarchy.getRootAddress().getHostAddress(), port);
+            System.out.printf("Running %d lookups/s for %d s with %d threads", qps, duration, threads);
+            System.out.println(shards > 0 ? " in " + shards + " shards" : "");
+
+            ShardedResolver resolver = shards > 0 ? new ShardedResolver(shards, Math.max(1, threads / shards)) : null;
+            run(hierarchy, qps, duration, threads, lame, resolver);
+            if (resolver != null) resolver.close();
+            DNSQueryHandler.closeSocket();
+        }
+    }
+
+    //lookups are performed by a fixed pool of threads, or by the threads of the shards if resolver is not null;
+    //a fraction lame of them is for names that cannot be resolved because of a lame delegation
+    private static void run(FakeDNSHierarchy hierarchy, int qps, int duration, int threads, double lame,
+                            ShardedResolver resolver) throws InterruptedException {
+        List<String> names = hierarchy.getHostNames();
+        int total = qps * duration;
+        long[] latencies = new long[total];
+        AtomicInteger succeeded = new AtomicInteger();
+        CountDownLatch completed = new CountDownLatch(total);
+        ExecutorService executor = resolver == null ? Executors.newFixedThreadPool(threads) : null;
+
+        long intervalNanos = 1_000_000_000L / qps;
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long scheduled = start + i * intervalNanos;
+            long delay = scheduled - System.nanoTime();
+            if (delay > 0) TimeUnit.NANOSECONDS.sleep(delay);
+
+            int index = i;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            String name = random.nextDouble() < lame ? "host" + i + "." + FakeDNSHierarchy.LAME_TLD
+                    : names.get(random.nextInt(names.size()));
+            DNSNode node = new DNSNode(name, RecordType.A);
+            BiConsumer<Set<ResourceRecord>, Throwable> done = (results, failure) -> {
+                if (results != null && !results.isEmpty()) succeeded.incrementAndGet();
+                latencies[index] = System.nanoTime() - scheduled;
+                completed.countDown();
+            };
+            if (resolver != null) {
+                resolver.resolveAsync(node, DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS).whenComplete(done);
+            } else {
+                executor.execute(() -> {
+                    //a lookup that throws still counts as completed, as a failure, or the run would never end
+                    Set<ResourceRecord> results = null;
+                    Throwable failure = null;
+                    try {
+                        results = DNSLookupService.getResults(node, new LookupContext(DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS));
+                    } catch (RuntimeException | Error e) {
+                        failure = e;
+                    }
+                    done.accept(results, failure);
+                });
+            }
+        }
+        completed.await();
+        if (executor != null) executor.shutdown();
+        long elapsed = System.nanoTime() - start;
+
+        Arrays.sort(latencies);
+        System.out.printf("Lookups:      %d (%d answered, %d failed)\n", total, succeeded.get(), total - succeeded.get());
+        System.out.printf("Throughput:   %.1f lookups/s\n", total / (elapsed / 1e9));
+        System.out.printf("Server load:  %d queries received\n", hierarchy.getQueriesReceived());
+        System.out.printf("Latency (ms): p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f\n",
+                percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+                percentile(latencies, 0.999), latencies[total - 1] / 1e6);
+    }
+
+    //latencies must be sorted
+    private static double percentile(long[] latencies, double fraction) {
+        int index = (int) Math.ceil(fraction * latencies.length) - 1;
+        return latencies[Math.max(0, Math.min(index, latencies.length - 1))] / 1e6;
+    }
+}
@@ -0,0 +1,199 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/** State shared by every query sent on behalf of a single lookup. A lookup may follow several
+ * referrals and CNAME redirections, each of which sends its own queries; all of them draw from
+ * the same overall time budget, so a slow or unresponsive server at one level cannot make the
+ * whole lookup wait indefinitely.
+ *
+ * The context also records every query sent for the lookup and every problem encountered, so
+ * that they can be reported to the caller in a LookupResult instead of being printed, and the
+ * name servers whose addresses the lookup is resolving, so that name servers that depend on each
+ * other cannot make it recurse forever.
+ */
+public class LookupContext {
+
+    /** Receives the progress of a lookup down the DNS hierarchy. Zones are named without the
+     * trailing dot; the empty string is the root.
+     */
+    public interface ZoneListener {
+        /** Called whenever the lookup is about to query the name servers of a zone. */
+        void zoneReached(String zone);
+
+        /** Called when the name servers of a zone gave the last response of a walk down the
+         * hierarchy, i.e., anything but a referral to another zone. Does nothing by default.
+         */
+        default void zoneAnswered(String zone) {
+        }
+    }
+
+    private final long deadline;
+    private final long createdNanos;
+    private final ZoneListener zoneListener;
+    private final Queue<LookupResult.ServerQuery> queries;
+    private final Queue<String> errors;
+    private final Set<String> nameserversInProgress;
+
+    /** Creates a context for a new lookup.
+     *
+     * @param budgetMillis Total number of milliseconds the lookup may take, counted from now.
+     */
+    public LookupContext(long budgetMillis) {
+        this(budgetMillis, null);
+    }
+
+    /** Creates a context for a new lookup that reports its progress down the DNS hierarchy.
+     *
+     * @param budgetMillis Total number of milliseconds the lookup may take, counted from now.
+     * @param zoneListener Listener told about each zone whose name servers the lookup queries,
+     *                     or null.
+     */
+    public LookupContext(long budgetMillis, ZoneListener zoneListener) {
+        this(System.currentTimeMillis() + budgetMillis, System.nanoTime(), zoneListener,
+                new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>(), ConcurrentHashMap.newKeySet());
+    }
+
+    private LookupContext(long deadline, long createdNanos, ZoneListener zoneListener,
+                          Queue<LookupResult.ServerQuery> queries, Queue<String> errors,
+                          Set<String> nameserversInProgress) {
+        this.deadline = deadline;
+        this.createdNanos = createdNanos;
+        this.zoneListener = zoneListener;
+        this.queries = queries;
+        this.errors = errors;
+        this.nameserversInProgress = nameserversInProgress;
+    }
+
+    /** Returns a context for part of this lookup that must finish sooner than the lookup itself.
+     * Queries and errors recorded in the returned context are recorded in this one.
+     *
+     * @param budgetMillis Number of milliseconds the part may take, counted from now.
+     * @return A context whose deadline is the earlier of this one and the given budget.
+     */
+    LookupContext limitedTo(long budgetMillis) {
+        return new LookupContext(Math.min(deadline, System.currentTimeMillis() + budgetMillis), createdNanos,
+                zoneListener, queries, errors, nameserversInProgress);
+    }
+
+    /** Returns a context for a lookup that runs alongside this one, on another thread, and
+     * reports its progress to a different listener. The returned context has the same deadline,
+     * but records its own queries and errors, so that each lookup can be reported on its own;
+     * name servers being resolved are tracked separately from then on.
+     *
+     * @param listener Listener told about each zone whose name servers the lookup queries, or null.
+     * @return A context with the same deadline as this one.
+     */
+    LookupContext withZoneListener(ZoneListener listener) {
+        Set<String> inProgress = ConcurrentHashMap.newKeySet();
+        inProgress.addAll(nameserversInProgress);
+        return new LookupContext(deadline, createdNanos, listener, new ConcurrentLinkedQueue<>(),
+                new ConcurrentLinkedQueue<>(), inProgress);
+    }
+
+    /** Returns the time (as returned by System.currentTimeMillis()) by which this lookup must
+     * be finished.
+     *
+     * @return The absolute deadline of this lookup, in milliseconds.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /** Returns the time (as returned by System.nanoTime()) at which this lookup was created.
+     *
+     * @return The creation time of this lookup, in nanoseconds.
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    /** Returns the number of milliseconds left before the deadline of this lookup is reached.
+     *
+     * @return The remaining time budget in milliseconds, or 0 if the deadline has passed.
+     */
+    public long remainingMillis() {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /** Returns true if the deadline of this lookup has been reached, and false otherwise.
+     *
+     * @return true if no time budget is left for this lookup.
+     */
+    public boolean isExpired() {
+        return remainingMillis() == 0;
+    }
+
+    /** Reports that the lookup is about to query the name servers of a zone, once their
+     * delegation is in the cache.
+     *
+     * @param zone Name of the zone, without the trailing dot. The empty string is the root.
+     */
+    void zoneReached(String zone) {
+        if (zoneListener != null) zoneListener.zoneReached(zone);
+    }
+
+    /** Reports that the name servers of a zone gave the last response of a walk down the
+     * hierarchy: an answer, an error, or anything else but a referral to another zone.
+     *
+     * @param zone Name of the zone, without the trailing dot. The empty string is the root.
+     */
+    void zoneAnswered(String zone) {
+        if (zoneListener != null) zoneListener.zoneAnswered(zone);
+    }
+
+    /** Records a query sent for this lookup, once it has been answered or abandoned.
+     *
+     * @param query Query and its outcome.
+     */
+    void recordQuery(LookupResult.ServerQuery query) {
+        queries.add(query);
+    }
+
+    /** Records a problem encountered by this lookup.
+     *
+     * @param error Description of the problem.
+     */
+    void addError(String error) {
+        errors.add(error);
+    }
+
+    /** Records that the address of a name server is about to be looked up on behalf of this
+     * lookup, unless it is already being looked up, which happens when the name servers of two
+     * zones are only known by names in each other's zone.
+     *
+     * @param nsName Name of the name server.
+     * @return true if the lookup may proceed, and false if the name is already being looked up.
+     */
+    boolean beginNameserverLookup(String nsName) {
+        return nameserversInProgress.add(nsName.toLowerCase());
+    }
+
+    /** Records that the address of a name server is no longer being looked up.
+     *
+     * @param nsName Name passed to beginNameserverLookup.
+     */
+    void endNameserverLookup(String nsName) {
+        nameserversInProgress.remove(nsName.toLowerCase());
+    }
+
+    /** Returns the number of name server address lookups currently nested in this lookup. */
+    int nameserverLookupDepth() {
+        return nameserversInProgress.size();
+    }
+
+    /** Returns the queries recorded so far, in the order they were recorded. */
+    public List<LookupResult.ServerQuery> getQueries() {
+        return new ArrayList<>(queries);
+    }
+
+    /** Returns the problems recorded so far, in the order they were recorded. */
+    public List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+}
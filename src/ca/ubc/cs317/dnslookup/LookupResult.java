@@ -0,0 +1,188 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/** The outcome of a lookup: the records found, the response code and authority of the answer,
+ * the queries that were sent to find it (the path through the DNS hierarchy, including queries
+ * for the addresses of name servers and for CNAME targets), how long each of them took, and any
+ * problems encountered along the way.
+ */
+public class LookupResult {
+
+    public static final int NOERROR = 0;
+    public static final int FORMERR = 1;
+    public static final int SERVFAIL = 2;
+    public static final int NXDOMAIN = 3;
+    public static final int NOTIMP = 4;
+    public static final int REFUSED = 5;
+
+    private static final String[] RCODE_NAMES = {"NOERROR", "FORMERR", "SERVFAIL", "NXDOMAIN", "NOTIMP", "REFUSED"};
+
+    /** A query sent to a server during a lookup, and its response. */
+    public static class ServerQuery {
+        private final DNSNode question;
+        private final String zone;
+        private final InetAddress server;
+        private final int transmissions;
+        private final long elapsedNanos;
+        private final int rcode;
+        private final boolean authoritative;
+
+        ServerQuery(DNSNode question, String zone, InetAddress server, int transmissions, long elapsedNanos,
+                    int rcode, boolean authoritative) {
+            this.question = question;
+            this.zone = zone;
+            this.server = server;
+            this.transmissions = transmissions;
+            this.elapsedNanos = elapsedNanos;
+            this.rcode = rcode;
+            this.authoritative = authoritative;
+        }
+
+        /** Returns the host name and record type asked for. */
+        public DNSNode getQuestion() {
+            return question;
+        }
+
+        /** Returns the zone the queried servers are name servers for, or null if unknown (e.g.,
+         * when forwarding to a recursive resolver).
+         */
+        public String getZone() {
+            return zone;
+        }
+
+        /** Returns the server that responded, or null if no server responded in time. */
+        public InetAddress getServer() {
+            return server;
+        }
+
+        /** Returns the number of times the query was sent, including retransmissions. */
+        public int getTransmissions() {
+            return transmissions;
+        }
+
+        /** Returns the time from the first transmission to the response (or to giving up), in
+         * nanoseconds, including any time waiting for the rate limits.
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        /** Returns the response code of the response, or -1 if there was no response. */
+        public int getRcode() {
+            return rcode;
+        }
+
+        /** Returns true if the response had the AA (authoritative answer) flag set. */
+        public boolean isAuthoritative() {
+            return authoritative;
+        }
+
+        @Override
+        public String toString() {
+            return question + " @" + (server == null ? "(no response)" : server.getHostAddress())
+                    + (zone == null ? "" : " for '" + zone + "'") + " " + rcodeName(rcode)
+                    + (authoritative ? " aa" : "") + " " + elapsedNanos / 1000 + "us";
+        }
+    }
+
+    private final DNSNode question;
+    private final Set<ResourceRecord> records;
+    private final int rcode;
+    private final boolean authoritative;
+    private final List<ServerQuery> queries;
+    private final List<String> errors;
+    private final long queuedNanos;
+    private final long totalNanos;
+
+    LookupResult(DNSNode question, Set<ResourceRecord> records, int rcode, boolean authoritative,
+                 List<ServerQuery> queries, List<String> errors, long queuedNanos, long totalNanos) {
+        this.question = question;
+        this.records = Collections.unmodifiableSet(records);
+        this.rcode = rcode;
+        this.authoritative = authoritative;
+        this.queries = Collections.unmodifiableList(queries);
+        this.errors = Collections.unmodifiableList(errors);
+        this.queuedNanos = queuedNanos;
+        this.totalNanos = totalNanos;
+    }
+
+    /** Returns the host name and record type that were looked up. */
+    public DNSNode getQuestion() {
+        return question;
+    }
+
+    /** Returns the records answering the question, at the end of any CNAME chain. */
+    public Set<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    /** Returns the response code of the lookup: NOERROR if records were found, or if the name
+     * exists without records of the type; NXDOMAIN if the name (or the end of its CNAME chain)
+     * does not exist; the response code of the last server otherwise, or SERVFAIL if the lookup
+     * could not be completed.
+     */
+    public int getRcode() {
+        return rcode;
+    }
+
+    /** Returns true if the answer came from an authoritative server during this lookup, rather
+     * than from the cache or from a recursive resolver.
+     */
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    /** Returns true if the lookup was answered without sending any query. */
+    public boolean isFromCache() {
+        return queries.isEmpty();
+    }
+
+    /** Returns the queries sent during the lookup, in the order they completed. */
+    public List<ServerQuery> getQueries() {
+        return queries;
+    }
+
+    /** Returns descriptions of the problems encountered during the lookup, if any. */
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    /** Returns the time between the lookup being requested and it starting, in nanoseconds. */
+    public long getQueuedNanos() {
+        return queuedNanos;
+    }
+
+    /** Returns the time spent waiting for servers, in nanoseconds. Queries sent at the same time
+     * (e.g., A and AAAA in a dual-stack lookup) are each counted in full.
+     */
+    public long getNetworkNanos() {
+        long total = 0;
+        for (ServerQuery query : queries) total += query.getElapsedNanos();
+        return total;
+    }
+
+    /** Returns the time between the lookup being requested and its result, in nanoseconds. */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /** Returns the name of a response code, e.g., "NXDOMAIN".
+     *
+     * @param rcode Response code.
+     * @return The mnemonic of the response code, or its number if it has no common mnemonic.
+     */
+    public static String rcodeName(int rcode) {
+        if (rcode < 0) return "TIMEOUT";
+        return rcode < RCODE_NAMES.length ? RCODE_NAMES[rcode] : "RCODE" + rcode;
+    }
+
+    @Override
+    public String toString() {
+        return question + " " + rcodeName(rcode) + (authoritative ? " aa" : "") + " " + records.size()
+                + " records, " + queries.size() + " queries, " + totalNanos / 1000 + "us";
+    }
+}
@@ -0,0 +1,524 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/** Replays a corpus of captured DNS responses through DNSQueryHandler.decodeAndCacheResponse,
+ * to check that the parser handles real traffic and to measure how fast it does so.
+ *
+ * The corpus is made of pcap files (responses are the UDP packets from port 53, over IPv4 or
+ * IPv6) and hex dump files (one packet per paragraph, hex digits with optional whitespace, and
+ * comments starting with #). Directories are searched for files recursively.
+ *
+ * Every packet is first decoded once and compared with an independent, deliberately simple
+ * reference decoder; packets where the parser throws, or where it returns different records than
+ * the reference, are reported. The corpus is then decoded repeatedly, on one or several threads,
+ * and the number of packets, records and bytes decoded per second, and the number of bytes
+ * allocated per packet, are reported.
+ */
+public class PacketReplay {
+
+    private static final String USAGE = "Usage: java -cp bin ca.ubc.cs317.dnslookup.PacketReplay [options] file|dir...\n" +
+            "\t-iterations N   timed passes over the corpus (default 20)\n" +
+            "\t-warmup N       untimed passes before measuring (default 5)\n" +
+            "\t-threads N      threads decoding the corpus at once (default 1)\n" +
+            "\t-show N         flagged packets to describe (default 20)";
+
+    //packets are decoded from a buffer of the size used by DNSQueryHandler to receive them
+    private static final int RECEIVE_BUFFER_SIZE = 1024;
+    private static final int DNS_PORT = 53;
+    private static final int RCODE_NXDOMAIN = 3;
+
+    private static final int PCAP_MAGIC = 0xa1b2c3d4;
+    private static final int PCAP_MAGIC_NANOSECONDS = 0xa1b23c4d;
+    private static final int PCAPNG_MAGIC = 0x0a0d0d0a;
+    private static final int LINKTYPE_NULL = 0;
+    private static final int LINKTYPE_ETHERNET = 1;
+    private static final int LINKTYPE_RAW = 101;
+    private static final int LINKTYPE_LINUX_SLL = 113;
+    private static final int LINKTYPE_IPV4 = 228;
+    private static final int LINKTYPE_IPV6 = 229;
+    private static final int LINKTYPE_LINUX_SLL2 = 276;
+
+    private static class Packet {
+        private final String source;
+        private final byte[] buffer;
+        private final int length;
+        private int records;
+
+        private Packet(String source, byte[] data) {
+            this.source = source;
+            this.buffer = Arrays.copyOf(data, Math.max(RECEIVE_BUFFER_SIZE, data.length));
+            this.length = data.length;
+        }
+
+        private int getTransactionID() {
+            return length < 2 ? 0 : RDataCodecs.readUnsignedShort(buffer, 0);
+        }
+
+        private ByteBuffer wrap() {
+            return ByteBuffer.wrap(buffer, 0, length);
+        }
+    }
+
+    /**
+     * Main function, called when the replay is invoked.
+     *
+     * @param args options, as listed in USAGE, followed by the files and directories of the corpus.
+     */
+    public static void main(String[] args) throws Exception {
+        int iterations = 20, warmup = 5, threads = 1, show = 20;
+        List<Path> inputs = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-iterations": iterations = Integer.parseInt(args[++i]); break;
+                    case "-warmup": warmup = Integer.parseInt(args[++i]); break;
+                    case "-threads": threads = Integer.parseInt(args[++i]); break;
+                    case "-show": show = Integer.parseInt(args[++i]); break;
+                    default:
+                        if (args[i].startsWith("-")) throw new IllegalArgumentException(args[i]);
+                        inputs.add(Paths.get(args[i]));
+                }
+            }
+            if (inputs.isEmpty()) throw new IllegalArgumentException("no corpus");
+        } catch (RuntimeException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+
+        List<Packet> packets = new ArrayList<>();
+        for (Path input : inputs) {
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(input)) {
+                walk.filter(Files::isRegularFile).sorted().forEach(files::add);
+            }
+            for (Path file : files) {
+                try {
+                    packets.addAll(load(file));
+                } catch (IOException e) {
+                    System.err.println(file + ": " + e.getMessage());
+                }
+            }
+        }
+        if (packets.isEmpty()) {
+            System.err.println("No DNS responses found");
+            System.exit(1);
+        }
+        long bytes = 0, records = 0;
+        for (Packet packet : packets) bytes += packet.length;
+
+        List<String> flagged = verify(packets);
+        for (Packet packet : packets) records += packet.records;
+        System.out.printf("Corpus:       %d responses, %d bytes, %d records\n", packets.size(), bytes, records);
+        System.out.printf("Flagged:      %d responses\n", flagged.size());
+        for (int i = 0; i < flagged.size() && i < show; i++)
+            System.out.println("  " + flagged.get(i));
+
+        runPasses(packets, warmup, threads);
+        long start = System.nanoTime();
+        long allocated = runPasses(packets, iterations, threads);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        long decoded = (long) packets.size() * iterations * threads;
+        System.out.printf("Decoded:      %d responses in %.3f s on %d thread(s)\n", decoded, seconds, threads);
+        System.out.printf("Throughput:   %.0f responses/s, %.0f records/s, %.2f MB/s\n", decoded / seconds,
+                records * iterations * threads / seconds, bytes * iterations * threads / seconds / 1e6);
+        if (allocated >= 0)
+            System.out.printf("Allocations:  %.0f bytes/response\n", (double) allocated / decoded);
+        else
+            System.out.println("Allocations:  not measurable on this JVM");
+    }
+
+    //decodes every packet once, comparing the result with the reference decoder; returns a description of each mismatch
+    private static List<String> verify(List<Packet> packets) {
+        List<String> flagged = new ArrayList<>();
+        DNSCache cache = new DNSCache(null);
+        for (Packet packet : packets) {
+            String problem;
+            Map<String, Long> expected = null;
+            String rejection = null;
+            try {
+                expected = ReferenceDecoder.decode(packet);
+            } catch (IllegalArgumentException e) {
+                rejection = e.getMessage();
+            }
+            try {
+                Set<ResourceRecord> actual = DNSQueryHandler.decodeAndCacheResponse(packet.getTransactionID(),
+                        packet.wrap(), cache);
+                problem = compare(expected, rejection, actual);
+            } catch (RuntimeException e) {
+                problem = "decoder threw " + e;
+            }
+            if (problem != null) flagged.add(packet.source + ": " + problem);
+        }
+        return flagged;
+    }
+
+    //expected is null if the reference does not expect records to be returned, either because of the RCODE or
+    //because the response is malformed, in which case rejection is the reason
+    private static String compare(Map<String, Long> expected, String rejection, Set<ResourceRecord> actual) {
+        if (expected == null && actual == null) return null;
+        if (expected == null)
+            return "decoder returned " + actual.size() + " records, reference rejected the response"
+                    + (rejection != null ? " (" + rejection + ")" : "");
+        if (actual == null) return "decoder returned nothing, reference decoded " + expected.size() + " records";
+
+        Map<String, Long> decoded = new HashMap<>();
+        for (ResourceRecord record : actual)
+            decoded.put(key(record.getNode(), record.getTextResult()), record.getTTL());
+        for (Map.Entry<String, Long> entry : expected.entrySet()) {
+            Long ttl = decoded.get(entry.getKey());
+            if (ttl == null) return "decoder missed " + entry.getKey();
+            //the decoder's TTL counts down from when the record was decoded
+            if (ttl > entry.getValue() || ttl < entry.getValue() - 1)
+                return "decoder TTL " + ttl + " instead of " + entry.getValue() + " for " + entry.getKey();
+        }
+        for (String key : decoded.keySet())
+            if (!expected.containsKey(key)) return "decoder returned unexpected " + key;
+        return null;
+    }
+
+    private static String key(DNSNode node, String data) {
+        return node.getHostName() + " " + node.getTypeName() + " " + data;
+    }
+
+    //runs passes over the corpus on each thread; returns the bytes allocated while decoding, or -1 if unknown.
+    //Each pass decodes into a new cache, so that every pass does the same work and the default cache is left alone.
+    private static long runPasses(List<Packet> packets, int passes, int threads) throws Exception {
+        AtomicLong allocated = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> workers = new ArrayList<>();
+        try {
+            for (int t = 0; t < threads; t++) {
+                int offset = t * packets.size() / threads;
+                workers.add(executor.submit(() -> {
+                    long before = allocatedBytes();
+                    for (int pass = 0; pass < passes; pass++) {
+                        DNSCache cache = new DNSCache(null);
+                        for (int i = 0; i < packets.size(); i++) {
+                            Packet packet = packets.get((offset + i) % packets.size());
+                            try {
+                                DNSQueryHandler.decodeAndCacheResponse(packet.getTransactionID(), packet.wrap(), cache);
+                            } catch (RuntimeException ignored) {
+                                // already reported by verify
+                            }
+                        }
+                    }
+                    long after = allocatedBytes();
+                    if (before < 0 || after < 0 || allocated.get() < 0) allocated.set(-1);
+                    else allocated.addAndGet(after - before);
+                }));
+            }
+            for (Future<?> worker : workers) worker.get();
+        } finally {
+            executor.shutdown();
+        }
+        return allocated.get();
+    }
+
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) return -1;
+        if (!threads.isThreadAllocatedMemoryEnabled()) threads.setThreadAllocatedMemoryEnabled(true);
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Loads the DNS responses in a file, either a pcap capture or a hex dump.
+     *
+     * @param file Path of the file.
+     * @return The responses in the file, in order.
+     * @throws IOException if the file could not be read or is not in a supported format.
+     */
+    private static List<Packet> load(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        if (content.length >= 4) {
+            int magic = ByteBuffer.wrap(content).getInt();
+            if (magic == PCAPNG_MAGIC)
+                throw new IOException("pcapng is not supported, convert it with: editcap -F pcap in out");
+            if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANOSECONDS
+                    || Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOSECONDS)
+                return loadPcap(file.toString(), content);
+        }
+        return loadHex(file.toString(), new String(content, StandardCharsets.US_ASCII));
+    }
+
+    private static List<Packet> loadHex(String name, String content) throws IOException {
+        List<Packet> packets = new ArrayList<>();
+        StringBuilder hex = new StringBuilder();
+        String[] lines = content.split("\r?\n", -1);
+        for (int i = 0; i <= lines.length; i++) {
+            String line = i < lines.length ? lines[i] : "";
+            if (!line.trim().isEmpty()) {
+                int comment = line.indexOf('#');
+                if (comment >= 0) line = line.substring(0, comment);
+                line = line.replaceAll("\\s+", "");
+                if (!line.matches("[0-9a-fA-F]*"))
+                    throw new IOException("line " + (i + 1) + " is not hexadecimal");
+                hex.append(line);
+            } else if (hex.length() > 0) {
+                //a blank line (or the end of the file) ends a packet
+                if (hex.length() % 2 != 0) throw new IOException("odd number of digits before line " + (i + 1));
+                byte[] data = new byte[hex.length() / 2];
+                for (int j = 0; j < data.length; j++)
+                    data[j] = (byte) Integer.parseInt(hex.substring(2 * j, 2 * j + 2), 16);
+                packets.add(new Packet(name + "#" + (packets.size() + 1), data));
+                hex.setLength(0);
+            }
+        }
+        return packets;
+    }
+
+    private static List<Packet> loadPcap(String name, byte[] content) throws IOException {
+        ByteBuffer pcap = ByteBuffer.wrap(content);
+        int magic = pcap.getInt();
+        if (magic != PCAP_MAGIC && magic != PCAP_MAGIC_NANOSECONDS) pcap.order(ByteOrder.LITTLE_ENDIAN);
+        int linkType = pcap.getInt(20) & 0xffff;
+        pcap.position(24);
+
+        List<Packet> packets = new ArrayList<>();
+        for (int frame = 1; pcap.remaining() >= 16; frame++) {
+            pcap.position(pcap.position() + 8); // timestamp
+            int capturedLength = pcap.getInt();
+            int originalLength = pcap.getInt();
+            if (capturedLength < 0 || capturedLength > pcap.remaining())
+                throw new IOException("frame " + frame + " exceeds file");
+            ByteBuffer data = ByteBuffer.wrap(content, pcap.position(), capturedLength).slice();
+            pcap.position(pcap.position() + capturedLength);
+            if (capturedLength < originalLength) continue; // cut by the capture's snap length
+
+            byte[] payload = dnsResponse(data, linkType);
+            if (payload != null) packets.add(new Packet(name + "#" + frame, payload));
+        }
+        return packets;
+    }
+
+    //returns the payload of a frame if it is a UDP packet from the DNS port, or null otherwise (including
+    //fragmented packets, which are not reassembled)
+    private static byte[] dnsResponse(ByteBuffer frame, int linkType) throws IOException {
+        try {
+            int ipStart;
+            switch (linkType) {
+                case LINKTYPE_ETHERNET:
+                    ipStart = 12;
+                    while (frame.getShort(ipStart) == (short) 0x8100 || frame.getShort(ipStart) == (short) 0x88a8)
+                        ipStart += 4; // VLAN tags
+                    ipStart += 2;
+                    break;
+                case LINKTYPE_LINUX_SLL: ipStart = 16; break;
+                case LINKTYPE_LINUX_SLL2: ipStart = 20; break;
+                case LINKTYPE_NULL: ipStart = 4; break;
+                case LINKTYPE_RAW:
+                case LINKTYPE_IPV4:
+                case LINKTYPE_IPV6: ipStart = 0; break;
+                default: throw new IOException("unsupported link type " + linkType);
+            }
+
+            int version = (frame.get(ipStart) & 0xf0) >> 4;
+            int protocol, udpStart, ipEnd;
+            if (version == 4) {
+                if ((frame.getShort(ipStart + 6) & 0x3fff) != 0) return null; // fragment
+                protocol = frame.get(ipStart + 9) & 0xff;
+                udpStart = ipStart + (frame.get(ipStart) & 0x0f) * 4;
+                ipEnd = ipStart + (frame.getShort(ipStart + 2) & 0xffff);
+            } else if (version == 6) {
+                protocol = frame.get(ipStart + 6) & 0xff;
+                udpStart = ipStart + 40;
+                ipEnd = udpStart + (frame.getShort(ipStart + 4) & 0xffff);
+                while (protocol == 0 || protocol == 43 || protocol == 60) { // hop-by-hop, routing, destination options
+                    protocol = frame.get(udpStart) & 0xff;
+                    udpStart += ((frame.get(udpStart + 1) & 0xff) + 1) * 8;
+                }
+            } else {
+                return null;
+            }
+            if (protocol != 17 || (frame.getShort(udpStart) & 0xffff) != DNS_PORT) return null;
+
+            int payloadStart = udpStart + 8;
+            int payloadEnd = Math.min(Math.min(ipEnd, frame.limit()), udpStart + (frame.getShort(udpStart + 4) & 0xffff));
+            if (payloadEnd <= payloadStart) return null;
+            byte[] payload = new byte[payloadEnd - payloadStart];
+            frame.position(payloadStart);
+            frame.get(payload);
+            return payload;
+        } catch (IndexOutOfBoundsException e) {
+            return null; // frame too short for its headers
+        }
+    }
+
+    /** An independent decoder of DNS responses, used to check the results of the resolver's
+     * decoder. It favours simplicity and strictness over speed: names are read label by label with
+     * compression pointers only allowed to point backwards, the data of every record must be
+     * consumed exactly, and nothing is read beyond the end of the packet. Records are presented in
+     * the same text format as RDataCodecs.
+     */
+    private static class ReferenceDecoder {
+
+        private static final int MAX_NAME_LENGTH = 255;
+
+        private final byte[] message;
+        private final int length;
+
+        private ReferenceDecoder(Packet packet) {
+            this.message = packet.buffer;
+            this.length = packet.length;
+        }
+
+        /** Decodes a response, and sets the number of records of the packet to the number of
+         * records that could be decoded.
+         *
+         * @return The records the resolver's decoder should return, as keys associated to TTLs, or
+         * null if it should return none because of the RCODE.
+         * @throws IllegalArgumentException if the response is malformed.
+         */
+        private static Map<String, Long> decode(Packet packet) {
+            return new ReferenceDecoder(packet).decodeRecords(packet);
+        }
+
+        private Map<String, Long> decodeRecords(Packet packet) {
+            if (length < 12) throw new IllegalArgumentException("shorter than a header");
+            int rcode = message[3] & 0x0f;
+            int questions = unsignedShort(4);
+            int records = unsignedShort(6) + unsignedShort(8) + unsignedShort(10);
+            packet.records = 0;
+            if (rcode != 0 && rcode != RCODE_NXDOMAIN) return null;
+
+            int index = 12;
+            for (int i = 0; i < questions; i++) {
+                index = skipName(index) + 4;
+                if (index > length) throw new IllegalArgumentException("question exceeds packet");
+            }
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (int i = 0; i < records; i++) {
+                StringBuilder owner = new StringBuilder();
+                index = name(index, owner);
+                if (index + 10 > length) throw new IllegalArgumentException("record header exceeds packet");
+                int type = unsignedShort(index);
+                long ttl = ((long) unsignedShort(index + 4) << 16) | unsignedShort(index + 6);
+                if (ttl > Integer.MAX_VALUE) ttl = 0;
+                int dataLength = unsignedShort(index + 8);
+                index += 10;
+                if (index + dataLength > length) throw new IllegalArgumentException("record data exceeds packet");
+                String key = key(new DNSNode(owner.toString(), type), data(type, index, dataLength));
+                result.putIfAbsent(key, ttl);
+                index += dataLength;
+                packet.records++;
+            }
+            return rcode == 0 ? result : null;
+        }
+
+        private String data(int type, int offset, int dataLength) {
+            int end = offset + dataLength;
+            StringBuilder text = new StringBuilder();
+            int index;
+            switch (RecordType.getByCode(type)) {
+                case A:
+                case AAAA:
+                    if (dataLength != (type == RecordType.A.getCode() ? 4 : 16))
+                        throw new IllegalArgumentException("address of length " + dataLength);
+                    try {
+                        return InetAddress.getByAddress(Arrays.copyOfRange(message, offset, end)).getHostAddress();
+                    } catch (UnknownHostException e) {
+                        throw new IllegalArgumentException(e);
+                    }
+                case NS:
+                case CNAME:
+                case DNAME:
+                case PTR:
+                    index = name(offset, text);
+                    break;
+                case MX:
+                    text.append(unsignedShort(offset)).append(' ');
+                    index = name(offset + 2, text);
+                    break;
+                case SRV:
+                    text.append(unsignedShort(offset)).append(' ').append(unsignedShort(offset + 2)).append(' ')
+                            .append(unsignedShort(offset + 4)).append(' ');
+                    index = name(offset + 6, text);
+                    break;
+                case SOA:
+                    index = name(offset, text);
+                    text.append(' ');
+                    index = name(index, text);
+                    for (int i = 0; i < 5; i++, index += 4)
+                        text.append(' ').append(((long) unsignedShort(index) << 16) | unsignedShort(index + 2));
+                    break;
+                case TXT:
+                    for (index = offset; index < end; ) {
+                        int stringLength = message[index] & 0xff;
+                        if (text.length() > 0) text.append(' ');
+                        text.append('"');
+                        for (int i = index + 1; i <= index + stringLength && i < end; i++) {
+                            char c = (char) (message[i] & 0xff);
+                            if (c == '"' || c == '\\') text.append('\\');
+                            text.append(c);
+                        }
+                        text.append('"');
+                        index += stringLength + 1;
+                    }
+                    break;
+                default:
+                    text.append("\\# ").append(dataLength);
+                    if (dataLength > 0) text.append(' ');
+                    for (int i = offset; i < end; i++) text.append(String.format("%02X", message[i] & 0xff));
+                    index = end;
+            }
+            if (index != end) throw new IllegalArgumentException("record data of type " + type + " has length "
+                    + dataLength + " but " + (index - offset) + " bytes are used");
+            return text.toString();
+        }
+
+        //reads a name into text; returns the index after the name where it starts
+        private int name(int index, StringBuilder text) {
+            int start = text.length(), end = -1, nameLength = 1;
+            while (true) {
+                if (index >= length) throw new IllegalArgumentException("name exceeds packet");
+                int labelLength = message[index] & 0xff;
+                if (labelLength == 0) {
+                    return end < 0 ? index + 1 : end;
+                } else if ((labelLength & 0xc0) == 0xc0) {
+                    if (index + 1 >= length) throw new IllegalArgumentException("pointer exceeds packet");
+                    int target = ((labelLength & 0x3f) << 8) | (message[index + 1] & 0xff);
+                    if (target >= index) throw new IllegalArgumentException("pointer does not point backwards");
+                    if (end < 0) end = index + 2;
+                    index = target;
+                } else if ((labelLength & 0xc0) != 0) {
+                    throw new IllegalArgumentException("label type " + labelLength);
+                } else {
+                    if (index + labelLength >= length) throw new IllegalArgumentException("label exceeds packet");
+                    nameLength += labelLength + 1;
+                    if (nameLength > MAX_NAME_LENGTH) throw new IllegalArgumentException("name longer than 255");
+                    if (text.length() > start) text.append('.');
+                    for (int i = index + 1; i <= index + labelLength; i++) text.append((char) (message[i] & 0xff));
+                    index += labelLength + 1;
+                }
+            }
+        }
+
+        private int skipName(int index) {
+            return name(index, new StringBuilder());
+        }
+
+        private int unsignedShort(int index) {
+            if (index + 2 > length) throw new IllegalArgumentException("field exceeds packet");
+            return ((message[index] & 0xff) << 8) | (message[index + 1] & 0xff);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/** This class limits the queries sent to each server, so that batch workloads do not get the
+ * resolver rate-limited or blacklisted. Two limits apply:
+ * <ul>
+ *     <li>Each transmission needs a token from the bucket of its destination address and, if
+ *     known, from the bucket of the zone being queried. Buckets refill at a fixed rate, up to a
+ *     maximum burst.</li>
+ *     <li>Each server has a maximum number of queries waiting for its reply at the same time.</li>
+ * </ul>
+ * Queries over either limit wait for their turn, in order of arrival, rather than being dropped.
+ * They only fail if their turn would come after the deadline of their lookup.
+ */
+public class QueryThrottle {
+
+    private static final int MAX_IDLE_BUCKETS = 10000;
+
+    private final double serverRate;
+    private final double serverBurst;
+    private final double zoneRate;
+    private final double zoneBurst;
+    private final int maxOutstandingPerServer;
+
+    private final Map<InetAddress, TokenBucket> serverBuckets = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> zoneBuckets = new ConcurrentHashMap<>();
+    private final Map<InetAddress, OutstandingSlots> outstanding = new ConcurrentHashMap<>();
+
+    /** A token bucket in which tokens may be reserved in advance. A caller that finds no token
+     * available takes the next one to be added (leaving the bucket in debt), and waits until that
+     * token would have been added. Callers are thus served in the order they arrived.
+     */
+    private static class TokenBucket {
+        private final double tokensPerMilli;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(double tokensPerSecond, double capacity) {
+            this.tokensPerMilli = tokensPerSecond / 1000;
+            this.capacity = capacity;
+            this.tokens = capacity;
+            this.lastRefill = System.currentTimeMillis();
+        }
+
+        //reserves a token, and returns the time at which it may be used, or -1 (reserving nothing) if that is after deadline
+        private synchronized long reserve(long now, long deadline) {
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerMilli);
+            lastRefill = now;
+            long readyAt = tokens >= 1 ? now : now + (long) Math.ceil((1 - tokens) / tokensPerMilli);
+            if (readyAt > deadline) return -1;
+            tokens -= 1;
+            return readyAt;
+        }
+
+        private synchronized void refund() {
+            tokens += 1;
+        }
+
+        //a bucket that would be full again by now holds no state worth keeping
+        private synchronized boolean isIdle(long now) {
+            return tokens + (now - lastRefill) * tokensPerMilli >= capacity;
+        }
+    }
+
+    /** The slots for queries waiting for a server's reply, and the number of callers holding or
+     * waiting for one of them. The entry of a server is removed when that number drops to zero,
+     * so only servers with queries in progress have one. The number is only read and written
+     * inside compute calls on the map, which are serialized for each server.
+     */
+    private static class OutstandingSlots {
+        private final Semaphore permits;
+        private int users = 0;
+
+        private OutstandingSlots(int maxOutstanding) {
+            this.permits = new Semaphore(maxOutstanding, true);
+        }
+    }
+
+    /** Creates a throttle with the specified limits.
+     *
+     * @param serverRate              Queries per second sent to any one server address.
+     * @param serverBurst             Queries that may be sent at once to a server that has been idle.
+     * @param zoneRate                Queries per second sent to the servers of any one zone.
+     * @param zoneBurst               Queries that may be sent at once to the servers of an idle zone.
+     * @param maxOutstandingPerServer Queries that may wait for the reply of any one server.
+     */
+    public QueryThrottle(double serverRate, double serverBurst, double zoneRate, double zoneBurst,
+                         int maxOutstandingPerServer) {
+        this.serverRate = serverRate;
+        this.serverBurst = serverBurst;
+        this.zoneRate = zoneRate;
+        this.zoneBurst = zoneBurst;
+        this.maxOutstandingPerServer = maxOutstandingPerServer;
+    }
+
+    /** Waits until a query may be sent to a server, consuming a token for the server and one for
+     * the zone.
+     *
+     * @param server   Address the query is about to be sent to.
+     * @param zone     Zone the server is queried as a name server for, or null if not known.
+     * @param deadline Time (as returned by System.currentTimeMillis()) after which the caller
+     *                 gives up on the query.
+     * @throws InterruptedIOException if the query could not be sent before the deadline.
+     */
+    public void awaitSendPermit(InetAddress server, String zone, long deadline) throws InterruptedIOException {
+        sleepUntil(reserveSendPermit(server, zone, deadline));
+    }
+
+    /** Consumes a token for the server and one for the zone, as awaitSendPermit does, but returns
+     * the time at which the query may be sent instead of waiting for it.
+     *
+     * @param server   Address the query is about to be sent to.
+     * @param zone     Zone the server is queried as a name server for, or null if not known.
+     * @param deadline Time after which the caller gives up on the query.
+     * @return The time (as returned by System.currentTimeMillis()) at which the query may be sent.
+     * @throws InterruptedIOException if the query could not be sent before the deadline.
+     */
+    public long reserveSendPermit(InetAddress server, String zone, long deadline) throws InterruptedIOException {
+        long now = System.currentTimeMillis();
+        if (serverBuckets.size() > MAX_IDLE_BUCKETS) serverBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+        if (zoneBuckets.size() > MAX_IDLE_BUCKETS) zoneBuckets.values().removeIf(bucket -> bucket.isIdle(now));
+        TokenBucket serverBucket = serverBuckets.computeIfAbsent(server, s -> new TokenBucket(serverRate, serverBurst));
+        long readyAt = serverBucket.reserve(now, deadline);
+        if (readyAt < 0) throw new InterruptedIOException("rate limit for " + server.getHostAddress() + " exceeded");
+        if (zone != null) {
+            TokenBucket zoneBucket = zoneBuckets.computeIfAbsent(zone.toLowerCase(), z -> new TokenBucket(zoneRate, zoneBurst));
+            long zoneReadyAt = zoneBucket.reserve(now, deadline);
+            if (zoneReadyAt < 0) {
+                serverBucket.refund();
+                throw new InterruptedIOException("rate limit for zone '" + zone + "' exceeded");
+            }
+            readyAt = Math.max(readyAt, zoneReadyAt);
+        }
+        return readyAt;
+    }
+
+    /** Waits until fewer than the maximum number of queries are waiting for a server's reply, and
+     * counts the caller as one of them. Waiting queries are admitted in order of arrival. Every
+     * successful call must be followed by a call to releaseOutstanding.
+     *
+     * @param server   Address of the server.
+     * @param deadline Time after which the caller gives up on the query.
+     * @throws InterruptedIOException if the server still had too many outstanding queries at the
+     *                                deadline.
+     */
+    public void acquireOutstanding(InetAddress server, long deadline) throws InterruptedIOException {
+        OutstandingSlots slots = useSlots(server);
+        boolean acquired = false;
+        try {
+            long timeout = deadline - System.currentTimeMillis();
+            acquired = timeout > 0 && slots.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+            if (!acquired)
+                throw new InterruptedIOException("too many outstanding queries for " + server.getHostAddress());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + server.getHostAddress());
+        } finally {
+            if (!acquired) unuseSlots(server);
+        }
+    }
+
+    /** Counts the caller as waiting for a server's reply if that is possible without waiting.
+     * A successful call must be followed by a call to releaseOutstanding.
+     *
+     * @param server Address of the server.
+     * @return true if the caller is now counted, false if the server has too many outstanding queries.
+     */
+    public boolean tryAcquireOutstanding(InetAddress server) {
+        if (useSlots(server).permits.tryAcquire()) return true;
+        unuseSlots(server);
+        return false;
+    }
+
+    /** Stops counting a query as waiting for a server's reply.
+     *
+     * @param server Address of the server passed to acquireOutstanding.
+     */
+    public void releaseOutstanding(InetAddress server) {
+        outstanding.get(server).permits.release();
+        unuseSlots(server);
+    }
+
+    //counts the caller as a user of the server's slots, which keeps them in the map
+    private OutstandingSlots useSlots(InetAddress server) {
+        return outstanding.compute(server, (s, slots) -> {
+            if (slots == null) slots = new OutstandingSlots(maxOutstandingPerServer);
+            slots.users++;
+            return slots;
+        });
+    }
+
+    //the last user of a server's slots leaves every permit available, so the slots need not be kept
+    private void unuseSlots(InetAddress server) {
+        outstanding.computeIfPresent(server, (s, slots) -> --slots.users == 0 ? null : slots);
+    }
+
+    private static void sleepUntil(long time) throws InterruptedIOException {
+        long delay = time - System.currentTimeMillis();
+        if (delay <= 0) return;
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while rate limited");
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package ca.ubc.cs317.dnslookup;
+
+/** A codec decodes the data (RDATA) of resource records of one particular type into a resource
+ * record. Codecs are registered with RDataCodecs, keyed by record type code, and are used by the
+ * response parser for every record in a DNS response.
+ */
+public interface RDataCodec {
+
+    /** Decodes the data of a resource record.
+     *
+     * @param message  The full DNS message the record is part of. Domain names in the data may
+     *                 point to names elsewhere in the message.
+     * @param offset   Index of the first byte of the record data in the message.
+     * @param length   Number of bytes of record data.
+     * @param hostName Owner name of the record.
+     * @param typeCode Record type code, as found in the message.
+     * @param ttl      TTL of the record, in seconds.
+     * @return The decoded resource record, or null if the record should be ignored.
+     * @throws IllegalArgumentException if the record data is malformed.
+     */
+    ResourceRecord decode(byte[] message, int offset, int length, String hostName, int typeCode, long ttl);
+}
@@ -0,0 +1,183 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+
+/** Registry of the codecs used to decode the data of resource records. Codecs are kept in an
+ * array indexed by record type code, so finding the codec for a record does not depend on the
+ * number of supported types. Records of a type with no registered codec are kept as opaque data,
+ * presented in the generic format of RFC 3597 (e.g., "\# 4 0A000001").
+ *
+ * This class also provides the helpers codecs need to read domain names and integers from a DNS
+ * message.
+ */
+public class RDataCodecs {
+
+    private static final int MAX_TYPE_CODE = 0xffff;
+    private static final int MAX_POINTERS = 64;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private static final RDataCodec[] codecs = new RDataCodec[MAX_TYPE_CODE + 1];
+
+    private static final RDataCodec unknownCodec = (message, offset, length, hostName, typeCode, ttl) -> {
+        StringBuilder text = new StringBuilder("\\# ").append(length);
+        if (length > 0) text.append(' ');
+        for (int i = offset; i < offset + length; i++)
+            text.append(HEX_DIGITS[(message[i] >> 4) & 0xf]).append(HEX_DIGITS[message[i] & 0xf]);
+        return new ResourceRecord(hostName, typeCode, ttl, text.toString());
+    };
+
+    static {
+        RDataCodec address = (message, offset, length, hostName, typeCode, ttl) -> {
+            try {
+                InetAddress inet = InetAddress.getByAddress(Arrays.copyOfRange(message, offset, offset + length));
+                return new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, inet);
+            } catch (UnknownHostException e) {
+                throw new IllegalArgumentException("invalid address length " + length);
+            }
+        };
+        RDataCodec domainName = (message, offset, length, hostName, typeCode, ttl) -> {
+            StringBuilder name = new StringBuilder();
+            readName(message, offset, name);
+            return new ResourceRecord(hostName, RecordType.getByCode(typeCode), ttl, name.toString());
+        };
+
+        register(RecordType.A.getCode(), address);
+        register(RecordType.AAAA.getCode(), address);
+        register(RecordType.NS.getCode(), domainName);
+        register(RecordType.CNAME.getCode(), domainName);
+        register(RecordType.DNAME.getCode(), domainName);
+        register(RecordType.PTR.getCode(), domainName);
+
+        // MX: preference exchange
+        register(RecordType.MX.getCode(), (message, offset, length, hostName, typeCode, ttl) -> {
+            StringBuilder text = new StringBuilder().append(readUnsignedShort(message, offset)).append(' ');
+            readName(message, offset + 2, text);
+            return new ResourceRecord(hostName, RecordType.MX, ttl, text.toString());
+        });
+        // SOA: mname rname serial refresh retry expire minimum
+        register(RecordType.SOA.getCode(), (message, offset, length, hostName, typeCode, ttl) -> {
+            StringBuilder text = new StringBuilder();
+            int index = readName(message, offset, text);
+            text.append(' ');
+            index = readName(message, index, text);
+            for (int i = 0; i < 5; i++, index += 4)
+                text.append(' ').append(readUnsignedInt(message, index));
+            return new ResourceRecord(hostName, RecordType.SOA, ttl, text.toString());
+        });
+        // TXT: one or more character strings, each presented in quotes
+        register(RecordType.TXT.getCode(), (message, offset, length, hostName, typeCode, ttl) -> {
+            StringBuilder text = new StringBuilder();
+            int index = offset;
+            while (index < offset + length) {
+                int stringLength = message[index++] & 0xff;
+                if (index + stringLength > offset + length)
+                    throw new IllegalArgumentException("TXT string exceeds record data");
+                if (text.length() > 0) text.append(' ');
+                text.append('"');
+                for (int i = index; i < index + stringLength; i++) {
+                    char c = (char) (message[i] & 0xff);
+                    if (c == '"' || c == '\\') text.append('\\');
+                    text.append(c);
+                }
+                text.append('"');
+                index += stringLength;
+            }
+            return new ResourceRecord(hostName, RecordType.TXT, ttl, text.toString());
+        });
+        // SRV: priority weight port target
+        register(RecordType.SRV.getCode(), (message, offset, length, hostName, typeCode, ttl) -> {
+            StringBuilder text = new StringBuilder()
+                    .append(readUnsignedShort(message, offset)).append(' ')
+                    .append(readUnsignedShort(message, offset + 2)).append(' ')
+                    .append(readUnsignedShort(message, offset + 4)).append(' ');
+            readName(message, offset + 6, text);
+            return new ResourceRecord(hostName, RecordType.SRV, ttl, text.toString());
+        });
+    }
+
+    /** Registers the codec used to decode records with a particular type code, replacing any
+     * codec previously registered for that code.
+     *
+     * @param typeCode Record type code, between 0 and 65535.
+     * @param codec    Codec to use for records of this type.
+     */
+    public static void register(int typeCode, RDataCodec codec) {
+        codecs[typeCode] = codec;
+    }
+
+    /** Decodes the data of a resource record using the codec registered for its type, or as
+     * opaque data if no codec is registered.
+     *
+     * @param message  The full DNS message the record is part of.
+     * @param offset   Index of the first byte of the record data in the message.
+     * @param length   Number of bytes of record data.
+     * @param hostName Owner name of the record.
+     * @param typeCode Record type code, as found in the message.
+     * @param ttl      TTL of the record, in seconds.
+     * @return The decoded resource record, or null if the record should be ignored.
+     * @throws IllegalArgumentException if the record data is malformed.
+     */
+    public static ResourceRecord decode(byte[] message, int offset, int length, String hostName, int typeCode, long ttl) {
+        RDataCodec codec = codecs[typeCode & MAX_TYPE_CODE];
+        return (codec != null ? codec : unknownCodec).decode(message, offset, length, hostName, typeCode, ttl);
+    }
+
+    /** Reads a domain name, possibly compressed, from a DNS message and appends it to a string
+     * builder, without the trailing dot.
+     *
+     * @param message The DNS message.
+     * @param index   Index of the first byte of the name.
+     * @param name    String builder the name is appended to.
+     * @return The index of the first byte after the name (after the first pointer, if the name is
+     * compressed).
+     * @throws IllegalArgumentException if the name is malformed, or contains a pointer loop.
+     */
+    public static int readName(byte[] message, int index, StringBuilder name) {
+        int next = -1;
+        int start = name.length();
+        for (int pointers = 0; ; ) {
+            if (index >= message.length) throw new IllegalArgumentException("name exceeds message");
+            int labelLength = message[index] & 0xff;
+            if (labelLength == 0) {
+                if (next < 0) next = index + 1;
+                break;
+            } else if ((labelLength & 0xc0) == 0xc0) {
+                if (++pointers > MAX_POINTERS) throw new IllegalArgumentException("name pointer loop");
+                if (index + 1 >= message.length) throw new IllegalArgumentException("name exceeds message");
+                if (next < 0) next = index + 2;
+                index = ((labelLength & 0x3f) << 8) | (message[index + 1] & 0xff);
+            } else if ((labelLength & 0xc0) != 0) {
+                throw new IllegalArgumentException("unsupported label type " + labelLength);
+            } else {
+                if (index + labelLength >= message.length) throw new IllegalArgumentException("label exceeds message");
+                if (name.length() > start) name.append('.');
+                for (int i = index + 1; i <= index + labelLength; i++)
+                    name.append((char) (message[i] & 0xff));
+                index += labelLength + 1;
+            }
+        }
+        return next;
+    }
+
+    /** Reads a 16-bit unsigned integer in network byte order.
+     *
+     * @param message The DNS message.
+     * @param index   Index of the first byte of the integer.
+     * @return The integer value.
+     */
+    public static int readUnsignedShort(byte[] message, int index) {
+        return ((message[index] & 0xff) << 8) | (message[index + 1] & 0xff);
+    }
+
+    /** Reads a 32-bit unsigned integer in network byte order.
+     *
+     * @param message The DNS message.
+     * @param index   Index of the first byte of the integer.
+     * @return The integer value.
+     */
+    public static long readUnsignedInt(byte[] message, int index) {
+        return ((long) readUnsignedShort(message, index) << 16) | readUnsignedShort(message, index + 2);
+    }
+}
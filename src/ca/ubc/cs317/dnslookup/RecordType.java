@@ -4,7 +4,14 @@ package ca.ubc.cs317.dnslookup;
  * fully supported by this application.
  */
 public enum RecordType {
-    A(1), NS(2), CNAME(5), SOA(6), MX(15), AAAA(28), OTHER(0);
+    A(1), NS(2), CNAME(5), SOA(6), PTR(12), MX(15), TXT(16), AAAA(28), SRV(33), DNAME(39), OTHER(0);
+
+    private static final RecordType[] byCode = new RecordType[256];
+
+    static {
+        for (RecordType type : values())
+            if (type != OTHER) byCode[type.code] = type;
+    }
 
     private int code;
 
@@ -23,10 +30,8 @@ public enum RecordType {
      * @return A record type that uses the specified code, or OTHER if no record type uses the code.
      */
     public static RecordType getByCode(int code) {
-        for (RecordType type : values())
-            if (type.code == code)
-                return type;
-        return OTHER;
+        RecordType type = (code >= 0 && code < byCode.length) ? byCode[code] : null;
+        return type != null ? type : OTHER;
     }
 }
 
@@ -0,0 +1,93 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.SocketException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/** One partition of a ShardedResolver: a cache shard, a pool of sockets, and the threads that
+ * perform lookups with them. While a thread of the shard performs a lookup, DNSLookupService and
+ * DNSQueryHandler use the shard's cache and sockets instead of the default ones, so lookups in
+ * different shards do not contend for the same cache entries or sockets.
+ */
+public class ResolverShard {
+
+    private static final ThreadLocal<ResolverShard> current = new ThreadLocal<>();
+
+    private final DNSCache cache;
+    private final SocketPool sockets;
+    private final ExecutorService threads;
+
+    /** Creates a shard and starts its threads.
+     *
+     * @param index          Number of the shard, used to name its threads.
+     * @param threadCount    Number of lookups the shard performs at the same time.
+     * @param infrastructure Tier the shard's cache replicates the top of the hierarchy with.
+     * @throws SocketException if the shard's sockets could not be opened.
+     */
+    ResolverShard(int index, int threadCount, InfrastructureTier infrastructure) throws SocketException {
+        this.cache = new DNSCache(infrastructure);
+        //a dual-stack lookup has two queries in flight, one of them on a thread outside the shard
+        this.sockets = new SocketPool(2 * threadCount);
+        this.threads = Executors.newFixedThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(() -> {
+                current.set(this);
+                runnable.run();
+            }, "resolver-shard-" + index);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /** Returns the shard the current thread performs lookups for.
+     *
+     * @return The shard, or null if the current thread does not belong to a shard.
+     */
+    static ResolverShard current() {
+        return current.get();
+    }
+
+    /** Returns a task that runs in the shard of the current thread, whichever thread runs it.
+     * This is used to hand part of a lookup over to another thread.
+     *
+     * @param task Task to be run.
+     * @return The task, bound to the shard of the current thread if it belongs to one.
+     */
+    static <T> Supplier<T> bindToCurrent(Supplier<T> task) {
+        ResolverShard shard = current.get();
+        if (shard == null) return task;
+        return () -> {
+            ResolverShard previous = current.get();
+            current.set(shard);
+            try {
+                return task.get();
+            } finally {
+                current.set(previous);
+            }
+        };
+    }
+
+    DNSCache getCache() {
+        return cache;
+    }
+
+    SocketPool getSockets() {
+        return sockets;
+    }
+
+    /** Runs a task on one of the threads of this shard.
+     *
+     * @param task Task to be run.
+     * @return The result of the task, once it completes.
+     */
+    <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, threads);
+    }
+
+    /** Stops the threads of the shard and closes its sockets. */
+    void close() {
+        threads.shutdownNow();
+        sockets.close();
+    }
+}
@@ -2,6 +2,7 @@ package ca.ubc.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.util.Collection;
 import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
@@ -23,11 +24,43 @@ public class ResourceRecord implements Serializable {
         this.inetResult = null;
     }
 
+    /** Creates a record of a type given by its code, which need not be known to RecordType.
+     *
+     * @param hostName Owner name of the record.
+     * @param typeCode Record type code, between 0 and 65535.
+     * @param ttl      TTL of the record, in seconds.
+     * @param result   Data of the record in its text form.
+     */
+    public ResourceRecord(String hostName, int typeCode, long ttl, String result) {
+        this.node = new DNSNode(hostName, typeCode);
+        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.textResult = result;
+        this.inetResult = null;
+    }
+
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
         this(hostName, type, ttl, result.getHostAddress());
         this.inetResult = result;
     }
 
+    /** Returns a copy of this record that expires at the same time as the earliest-expiring
+     * record in a collection, if that is earlier than this record's own expiration. This may
+     * be used, for example, to limit the TTL of an A record reached through a CNAME record to
+     * the TTL of the CNAME record.
+     *
+     * @param records Records whose expiration this record's expiration should not exceed.
+     * @return A record with the same node and result as this one, expiring no later than any of
+     * the records.
+     */
+    public ResourceRecord expiringNoLaterThan(Collection<ResourceRecord> records) {
+        ResourceRecord copy = new ResourceRecord(getHostName(), getTypeCode(), 0, textResult);
+        copy.inetResult = inetResult;
+        copy.expirationTime = expirationTime;
+        for (ResourceRecord record : records)
+            if (record.expiresBefore(copy)) copy.expirationTime = record.expirationTime;
+        return copy;
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -40,6 +73,10 @@ public class ResourceRecord implements Serializable {
         return node.getType();
     }
 
+    public int getTypeCode() {
+        return node.getTypeCode();
+    }
+
     /** The TTL for this record. It is returned based on the (ceiling of the) number of seconds
      * remaining until this record expires. The TTL returned by this method will only match the
      * TTL obtained from the DNS server in the first second from the time this record was
@@ -48,7 +85,17 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return getTTL(System.currentTimeMillis());
+    }
+
+    /** The TTL this record had, or will have, at a specific time, rounded up like getTTL().
+     *
+     * @param timeMillis Time, in milliseconds since the epoch.
+     * @return The number of seconds, rounded up, between the time and the expiration of this
+     * record; zero or negative if the record is expired at that time.
+     */
+    public long getTTL(long timeMillis) {
+        return (expirationTime.getTime() - timeMillis + 999) / 1000;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +105,16 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return isValidAt(System.currentTimeMillis());
+    }
+
+    /** Returns true if this record is valid (not expired) at a specific time.
+     *
+     * @param timeMillis Time, in milliseconds since the epoch.
+     * @return true if this record expires after the time, and false otherwise.
+     */
+    public boolean isValidAt(long timeMillis) {
+        return expirationTime.getTime() > timeMillis;
     }
 
     /** Returns true if this record expires before another record. This method may be used to
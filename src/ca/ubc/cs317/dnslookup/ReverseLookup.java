@@ -0,0 +1,128 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/** This class resolves IP addresses back into host names using PTR records. Reverse lookups go
+ * through the same iterative engine and cache as any other lookup, so once the delegation of an
+ * in-addr.arpa or ip6.arpa zone has been found for one address, lookups for neighbouring
+ * addresses start directly at that zone's name servers.
+ */
+public class ReverseLookup {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] IPV4_SUFFIX = "in-addr.arpa".toCharArray();
+    private static final char[] IPV6_SUFFIX = "ip6.arpa".toCharArray();
+    private static final char[][] OCTETS = new char[256][];
+
+    static {
+        for (int i = 0; i < OCTETS.length; i++)
+            OCTETS[i] = Integer.toString(i).toCharArray();
+    }
+
+    /** Returns the name used to look up the PTR record of an address, e.g., 4.3.2.1.in-addr.arpa
+     * for 1.2.3.4, or the nibble-reversed name under ip6.arpa for an IPv6 address. The name is
+     * written into a single character array, creating no intermediate strings.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return The reverse-lookup name of the address.
+     */
+    public static String arpaName(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        char[] name;
+        int length = 0;
+        if (address instanceof Inet4Address) {
+            name = new char[4 * 4 + IPV4_SUFFIX.length];
+            for (int i = bytes.length - 1; i >= 0; i--) {
+                char[] octet = OCTETS[bytes[i] & 0xff];
+                System.arraycopy(octet, 0, name, length, octet.length);
+                length += octet.length;
+                name[length++] = '.';
+            }
+            System.arraycopy(IPV4_SUFFIX, 0, name, length, IPV4_SUFFIX.length);
+            length += IPV4_SUFFIX.length;
+        } else {
+            name = new char[bytes.length * 4 + IPV6_SUFFIX.length];
+            for (int i = bytes.length - 1; i >= 0; i--) {
+                name[length++] = HEX_DIGITS[bytes[i] & 0xf];
+                name[length++] = '.';
+                name[length++] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+                name[length++] = '.';
+            }
+            System.arraycopy(IPV6_SUFFIX, 0, name, length, IPV6_SUFFIX.length);
+            length += IPV6_SUFFIX.length;
+        }
+        return new String(name, 0, length);
+    }
+
+    /** Finds the PTR records of a single address.
+     *
+     * @param address IPv4 or IPv6 address.
+     * @return The result of the lookup of the PTR records of the address, with its response
+     * code and any problems encountered.
+     */
+    public static LookupResult resolve(InetAddress address) {
+        DNSNode node = new DNSNode(arpaName(address), RecordType.PTR);
+        return DNSLookupService.lookup(node, new LookupContext(DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS));
+    }
+
+    /** Finds the PTR records of many addresses, using several threads. Addresses are taken from
+     * the iterable as threads become available, so at most a few more than parallelism addresses
+     * are pending at any time, no matter how many addresses there are. Results are passed to the
+     * consumer as soon as each lookup finishes, from the thread that performed it, so the
+     * consumer must be thread-safe. This method returns once all lookups have finished.
+     *
+     * A lookup that fails with an unexpected exception is passed to the consumer as an incomplete
+     * lookup (SERVFAIL, with no records), and the first such exception is thrown once all lookups have finished, with any
+     * others attached as suppressed exceptions.
+     *
+     * @param addresses   Addresses to be resolved.
+     * @param parallelism Number of lookups performed in parallel.
+     * @param consumer    Action performed with each address and the result of the lookup of its
+     *                    PTR records.
+     * @throws InterruptedException if interrupted while waiting for lookups to finish.
+     */
+    public static void resolveAll(Iterable<InetAddress> addresses, int parallelism,
+                                  BiConsumer<InetAddress, LookupResult> consumer) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Semaphore pending = new Semaphore(2 * parallelism);
+        Queue<RuntimeException> failures = new ConcurrentLinkedQueue<>();
+        try {
+            for (InetAddress address : addresses) {
+                pending.acquire();
+                executor.execute(() -> {
+                    LookupContext context = new LookupContext(DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS);
+                    DNSNode node = null;
+                    LookupResult result;
+                    try {
+                        node = new DNSNode(arpaName(address), RecordType.PTR);
+                        result = DNSLookupService.lookup(node, context);
+                    } catch (RuntimeException e) {
+                        failures.add(e);
+                        context.addError("reverse lookup of " + address + " failed: " + e);
+                        result = DNSLookupService.incompleteLookup(
+                                node != null ? node : new DNSNode(String.valueOf(address), RecordType.PTR), context);
+                    } finally {
+                        pending.release();
+                    }
+                    consumer.accept(address, result);
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        RuntimeException failure = failures.poll();
+        if (failure != null) {
+            for (RuntimeException other : failures) failure.addSuppressed(other);
+            throw failure;
+        }
+    }
+}
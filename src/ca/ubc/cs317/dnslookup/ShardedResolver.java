@@ -0,0 +1,168 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.net.SocketException;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/** A resolver whose state is partitioned into shards, to let lookups scale with the number of
+ * cores. Each shard has its own cache, its own sockets and its own threads, and every lookup is
+ * routed to a shard by a hash of the host name, so repeated lookups of a name (of any type) are
+ * answered from the same shard's cache, and lookups of different names rarely touch the same
+ * data. The NS records of the root and top-level domains, and their addresses, which every shard
+ * needs, are replicated in every shard by an InfrastructureTier.
+ *
+ * Lookups performed by a shard still follow every other setting of DNSLookupService and
+ * DNSQueryHandler, such as the root server, forwarding and rate limits. These settings are shared
+ * by every resolver in the process, so the root server must be set (with
+ * DNSLookupService.setRootServer) before the first lookup.
+ */
+public class ShardedResolver {
+
+    private final ResolverShard[] shards;
+
+    /** Creates a resolver and starts the threads of its shards.
+     *
+     * @param shardCount      Number of shards, e.g., the number of available processors.
+     * @param threadsPerShard Number of lookups each shard performs at the same time.
+     * @throws SocketException if the sockets of the shards could not be opened.
+     */
+    public ShardedResolver(int shardCount, int threadsPerShard) throws SocketException {
+        InfrastructureTier infrastructure = new InfrastructureTier();
+        shards = new ResolverShard[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++)
+                shards[i] = new ResolverShard(i, threadsPerShard, infrastructure);
+        } catch (SocketException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /** Looks up a node in the shard the node is routed to, without waiting for the lookup to
+     * complete. Nothing is printed; problems encountered are reported in the result.
+     *
+     * @param node         Host name and record type to be used for search.
+     * @param budgetMillis Time the lookup may take, counted from now, including any time spent
+     *                     waiting for a thread of the shard.
+     * @return The result of the lookup, once complete.
+     */
+    public CompletableFuture<LookupResult> lookupAsync(DNSNode node, long budgetMillis) {
+        LookupContext context = new LookupContext(budgetMillis);
+        return shardFor(node).submit(() -> DNSLookupService.lookup(node, context));
+    }
+
+    /** Looks up a host name and record type, with the default time budget of a lookup, without
+     * waiting for the lookup to complete.
+     *
+     * @param hostName Fully qualified domain name to be searched.
+     * @param type     Record type to be searched.
+     * @return The result of the lookup, once complete.
+     */
+    public CompletableFuture<LookupResult> lookupAsync(String hostName, RecordType type) {
+        return lookupAsync(new DNSNode(hostName, type), DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS);
+    }
+
+    /** Looks up a node in the shard the node is routed to.
+     *
+     * @param node         Host name and record type to be used for search.
+     * @param budgetMillis Time the lookup may take, counted from now.
+     * @return The result of the lookup.
+     */
+    public LookupResult lookup(DNSNode node, long budgetMillis) {
+        return lookupAsync(node, budgetMillis).join();
+    }
+
+    /** Looks up a host name and record type, with the default time budget of a lookup.
+     *
+     * @param hostName Fully qualified domain name to be searched.
+     * @param type     Record type to be searched.
+     * @return The result of the lookup.
+     */
+    public LookupResult lookup(String hostName, RecordType type) {
+        return lookupAsync(hostName, type).join();
+    }
+
+    /** Looks up the IPv4 and IPv6 addresses of a host name at the same time, in the shard the
+     * name is routed to, without waiting for the lookups to complete. The AAAA lookup starts from
+     * the last delegation the A lookup uses (see DNSLookupService), so the hierarchy is only
+     * walked once.
+     *
+     * @param hostName     Fully qualified domain name to be searched.
+     * @param budgetMillis Time both lookups may take, counted from now, including any time spent
+     *                     waiting for a thread of the shard.
+     * @return The results of the A and AAAA lookups, in this order, once both are complete.
+     */
+    public CompletableFuture<List<LookupResult>> lookupDualStackAsync(String hostName, long budgetMillis) {
+        LookupContext context = new LookupContext(budgetMillis);
+        return shardFor(new DNSNode(hostName, RecordType.A))
+                .submit(() -> DNSLookupService.lookupDualStack(hostName, context));
+    }
+
+    /** Looks up the IPv4 and IPv6 addresses of a host name at the same time, with the default
+     * time budget of a lookup, without waiting for the lookups to complete.
+     *
+     * @param hostName Fully qualified domain name to be searched.
+     * @return The results of the A and AAAA lookups, in this order, once both are complete.
+     */
+    public CompletableFuture<List<LookupResult>> lookupDualStackAsync(String hostName) {
+        return lookupDualStackAsync(hostName, DNSQueryHandler.DEFAULT_LOOKUP_BUDGET_MS);
+    }
+
+    /** Looks up the IPv4 and IPv6 addresses of a host name at the same time, with the default
+     * time budget of a lookup.
+     *
+     * @param hostName Fully qualified domain name to be searched.
+     * @return The results of the A and AAAA lookups, in this order.
+     */
+    public List<LookupResult> lookupDualStack(String hostName) {
+        return lookupDualStackAsync(hostName).join();
+    }
+
+    /** Finds all the results for a node in the shard the node is routed to, without waiting
+     * for the lookup to complete.
+     *
+     * @param node         Host name and record type to be used for search.
+     * @param budgetMillis Time the lookup may take, counted from now, including any time spent
+     *                     waiting for a thread of the shard.
+     * @return A potentially empty set of resource records answering the query, once found.
+     */
+    public CompletableFuture<Set<ResourceRecord>> resolveAsync(DNSNode node, long budgetMillis) {
+        return lookupAsync(node, budgetMillis).thenApply(LookupResult::getRecords);
+    }
+
+    /** Finds all the results for a node in the shard the node is routed to.
+     *
+     * @param node         Host name and record type to be used for search.
+     * @param budgetMillis Time the lookup may take, counted from now.
+     * @return A potentially empty set of resource records answering the query.
+     */
+    public Set<ResourceRecord> resolve(DNSNode node, long budgetMillis) {
+        return resolveAsync(node, budgetMillis).join();
+    }
+
+    /** Removes everything cached for a domain and every name under it from every shard.
+     *
+     * @param domain Domain to be removed, without the trailing dot. The empty string removes
+     *               everything.
+     * @return The number of records removed, counting each replica of a record.
+     */
+    public int flush(String domain) {
+        int count = 0;
+        for (ResolverShard shard : shards)
+            count += shard.getCache().flush(domain);
+        return count;
+    }
+
+    /** Stops the threads of every shard and closes their sockets. */
+    public void close() {
+        for (ResolverShard shard : shards)
+            if (shard != null) shard.close();
+    }
+
+    //names are compared without regard to case, so they are hashed in lower case
+    private ResolverShard shardFor(DNSNode node) {
+        int hash = node.getHostName().toLowerCase().hashCode();
+        return shards[Math.floorMod(hash ^ (hash >>> 16), shards.length)];
+    }
+}
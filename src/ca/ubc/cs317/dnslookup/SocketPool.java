@@ -0,0 +1,124 @@
+package ca.ubc.cs317.dnslookup;
+
+import java.io.InterruptedIOException;
+import java.net.BindException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/** This class handles a pool of UDP sockets used to send queries. Each socket is bound to a
+ * randomly chosen source port, and is re-bound to a new random port after it has been used for
+ * MAX_USES_PER_PORT queries. A query holds a socket for itself from the moment it is sent until
+ * its reply arrives, so any packet received on that socket can only be a reply to that query (or
+ * a late or forged one, which the caller discards). Independent lookups use different sockets,
+ * and therefore different receive queues, allowing them to proceed in parallel.
+ */
+public class SocketPool {
+
+    private static final int MIN_PORT = 1024;
+    private static final int MAX_PORT = 65535;
+    private static final int MAX_BIND_ATTEMPTS = 10;
+    private static final int MAX_USES_PER_PORT = 100;
+
+    private static final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+
+    private final BlockingQueue<PooledSocket> idle;
+    private volatile boolean closed = false;
+
+    /** A socket and the number of queries it has sent since it was bound to its port. */
+    public static class PooledSocket {
+        private final DatagramSocket socket;
+        private int uses = 0;
+
+        private PooledSocket(DatagramSocket socket) {
+            this.socket = socket;
+        }
+
+        public DatagramSocket getSocket() {
+            return socket;
+        }
+    }
+
+    /** Creates a pool with the specified number of sockets, each bound to a random port.
+     *
+     * @param size Number of sockets in the pool.
+     * @throws SocketException if a socket could not be opened.
+     */
+    public SocketPool(int size) throws SocketException {
+        idle = new ArrayBlockingQueue<>(size);
+        for (int i = 0; i < size; i++)
+            idle.add(new PooledSocket(openRandomPortSocket()));
+    }
+
+    /** Takes an idle socket from the pool, waiting if all sockets are in use.
+     *
+     * @param timeoutMillis Maximum number of milliseconds to wait for a socket.
+     * @return A socket that is used exclusively by the caller until it is released.
+     * @throws InterruptedIOException if no socket became available in time.
+     */
+    public PooledSocket acquire(long timeoutMillis) throws InterruptedIOException {
+        if (closed) throw new InterruptedIOException("socket pool is closed");
+        try {
+            PooledSocket pooled = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+            if (pooled == null) throw new InterruptedIOException("no socket available");
+            pooled.uses++;
+            return pooled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a socket");
+        }
+    }
+
+    /** Returns a socket to the pool. The socket is replaced by one bound to a new random port if
+     * it has been used too many times, or if the caller found it to be broken.
+     *
+     * @param pooled Socket previously returned by acquire.
+     * @param broken true if an I/O error occurred on the socket and it should not be reused.
+     * @throws SocketException if the socket had to be replaced but no new socket could be opened;
+     *                         the pool then has one socket fewer.
+     */
+    public void release(PooledSocket pooled, boolean broken) throws SocketException {
+        if (closed) {
+            pooled.socket.close();
+            return;
+        }
+        if (broken || pooled.uses >= MAX_USES_PER_PORT) {
+            pooled.socket.close();
+            pooled = new PooledSocket(openRandomPortSocket());
+        }
+        idle.add(pooled);
+    }
+
+    /** Closes all idle sockets. Sockets currently in use are closed when they are released. */
+    public void close() {
+        closed = true;
+        PooledSocket pooled;
+        while ((pooled = idle.poll()) != null)
+            pooled.socket.close();
+    }
+
+    /** Returns a random 16-bit transaction ID. IDs are drawn from a cryptographically strong
+     * generator owned by the calling thread, so concurrent queries do not contend for it.
+     *
+     * @return A transaction ID between 0 and 0xffff.
+     */
+    public static int randomTransactionID() {
+        return random.get().nextInt(0x10000);
+    }
+
+    private static DatagramSocket openRandomPortSocket() throws SocketException {
+        for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+            int port = MIN_PORT + random.get().nextInt(MAX_PORT - MIN_PORT + 1);
+            try {
+                return new DatagramSocket(new InetSocketAddress(port));
+            } catch (BindException ignored) {
+                // port already in use, try another one
+            }
+        }
+        return new DatagramSocket();
+    }
+}